@@ -1,10 +1,13 @@
 package IJ_Plugins;
 
+import java.io.File;
+import java.io.IOException;
+
 import ij.*;
 import ij.plugin.*;
-import ij.process.*;
 import ij.measure.ResultsTable;
 import ij.gui.GenericDialog;
+import ij.io.SaveDialog;
 
 /* Measures individual and integrated fluorescence values for an edited 4-channel 4D hyperstack. */
 public class Analyze_Edited_Movie implements PlugIn {
@@ -12,11 +15,11 @@ public class Analyze_Edited_Movie implements PlugIn {
 	private ImagePlus hyperStack;
 	private int frames, slices, channels, width, height;                  // Hyperstack parameters.
 	private double interval;
+	private boolean saveTrace;                                            // Write a binary trace file as well as the table?
 	private String title, info;
 	private double[] redValues, greenValues, blueValues;
 	private double[] redValuesIntegrated, greenValuesIntegrated, blueValuesIntegrated;
 	private ResultsTable results = new ResultsTable();
-	private ImagePlus red, green, blue;
 	
 	//------------------------------------------------------------------------------------------------------------------------  
 	
@@ -36,9 +39,11 @@ public class Analyze_Edited_Movie implements PlugIn {
      
       GenericDialog gd = new GenericDialog("Z-Stack Interval");
       gd.addNumericField("Z-Stack Interval:", 2.00, 2);                 // The default interval is 2.00 sec.
+      gd.addCheckbox("Save binary trace file", false);
       gd.showDialog();
       if (gd.wasCanceled()) return;
       interval = gd.getNextNumber();
+      saveTrace = gd.getNextBoolean();
       
       width = hyperStack.getWidth();
       height = hyperStack.getHeight();
@@ -56,23 +61,13 @@ public class Analyze_Edited_Movie implements PlugIn {
       greenValuesIntegrated = new double[frames];
       blueValuesIntegrated = new double[frames];
       
-      // Create images to hold the fluorescence data.
-      red = IJ.createImage("Red", "8-bit black", width, height, 1);
-      green = IJ.createImage("Green", "8-bit black", width, height, 1);
-      blue = IJ.createImage("Blue", "8-bit black", width, height, 1);
-      
       // For each time point, sum the mean values for the fluorescence images in each slice.
+      ImageStack stack = hyperStack.getStack();
       for (int t = 1; t <= frames; t++) {
         for (int z = 1; z <= slices; z++) {
-          hyperStack.setPositionWithoutUpdate(1, z, t);
-          red.getProcessor().copyBits(hyperStack.getProcessor(), 0, 0, Blitter.COPY);
-          redValues[t - 1] += red.getStatistics().mean;
-          hyperStack.setPositionWithoutUpdate(2, z, t); 
-          green.getProcessor().copyBits(hyperStack.getProcessor(), 0, 0, Blitter.COPY);
-          greenValues[t - 1] += green.getStatistics().mean;
-          hyperStack.setPositionWithoutUpdate(3, z, t);
-          blue.getProcessor().copyBits(hyperStack.getProcessor(), 0, 0, Blitter.COPY);
-          blueValues[t - 1] += blue.getStatistics().mean;
+          redValues[t - 1] += PixelKernels.mean((byte[]) stack.getPixels(hyperStack.getStackIndex(1, z, t)));
+          greenValues[t - 1] += PixelKernels.mean((byte[]) stack.getPixels(hyperStack.getStackIndex(2, z, t)));
+          blueValues[t - 1] += PixelKernels.mean((byte[]) stack.getPixels(hyperStack.getStackIndex(3, z, t)));
         }
         if (t == 1) {
           redValuesIntegrated[0] = redValues[0];
@@ -103,14 +98,64 @@ public class Analyze_Edited_Movie implements PlugIn {
         }
       }
       
-      red.close();
-      green.close();
-      blue.close();
-      
       //results.showRowNumbers(false);
       results.show(title);
       
+      if (saveTrace) {
+        saveTraceFile();
+      }
+      
       hyperStack.setPosition(1,1,1);
 	}
 
+    //========================================================================================================================
+    
+    /* Writes the measured values to a binary trace file, using the same column headings as the ResultsTable. */
+    private void saveTraceFile() {
+      SaveDialog sd = new SaveDialog("Save Trace File", title, TraceFile.EXTENSION);
+      if (sd.getFileName() == null) return;
+      
+      int columns = 3;
+      if (channels >= 3) columns += 2;
+      if (channels == 4) columns += 2;
+      String[] headings = new String[columns];
+      double[][] values = new double[columns][];
+      
+      double[] time = new double[frames];
+      for (int t = 1; t <= frames; t++) {
+        time[t - 1] = interval * (t - 1);
+      }
+      
+      int i = 0;
+      headings[i] = "Time";
+      values[i++] = time;
+      if (channels >= 3) {
+        headings[i] = "Red";
+        values[i++] = redValues;
+      }
+      headings[i] = "Green";
+      values[i++] = greenValues;
+      if (channels == 4) {
+        headings[i] = "Blue";
+        values[i++] = blueValues;
+      }
+      if (channels >= 3) {
+        headings[i] = "Red Integrated";
+        values[i++] = redValuesIntegrated;
+      }
+      headings[i] = "Green Integrated";
+      values[i++] = greenValuesIntegrated;
+      if (channels == 4) {
+        headings[i] = "Blue Integrated";
+        values[i++] = blueValuesIntegrated;
+      }
+      
+      try {
+        new TraceFile(channels, interval, headings, values).write(new File(sd.getDirectory(), sd.getFileName()));
+      }
+      catch (IOException e) {
+        IJ.error("Analyze Edited Movie", "Could not save the trace file:\n" + e.getMessage());
+      }
+    }
+
 }
@@ -1,13 +1,18 @@
 package IJ_Plugins;
 
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileWriter;
 import java.io.FilenameFilter;
+import java.io.IOException;
 import java.util.Arrays;
 
 import ij.*;
 import ij.plugin.*;
 import ij.measure.ResultsTable;
 import ij.io.OpenDialog;
+import ij.io.DirectoryChooser;
+import ij.gui.GenericDialog;
 
 /* Averages integrated fluorescence values for a set of analyzed events. */
 public class Average_Traces implements PlugIn {
@@ -35,17 +40,23 @@ public class Average_Traces implements PlugIn {
                  greenBlueStartSEM, greenBlueEndSEM,
                  redBlueStartMean, redBlueEndMean,
                  redBlueStartSEM, redBlueEndSEM;                            // Offset values for the start and end times of the traces.
+  private int outputMode;                                                   // How the per-channel trace tables are output.
+  private boolean showTraceTables;                                          // Show the per-channel trace tables on screen?
+  private String outputDirectory;                                           // Folder for saved trace tables.
+  
+  private static final int SHOW_TABLES = 0, SAVE_CSV = 1, SAVE_TRACE = 2;   // Output modes for the per-channel trace tables.
 	//------------------------------------------------------------------------------------------------------------------------  
 	
     public void run(String arg) {
       
-      IJ.showMessage("Please choose a CSV file in the folder of analyzed trace files.");
+      IJ.showMessage("Please choose a CSV or trace file in the folder of analyzed trace files.");
       String directory = new OpenDialog("Choose First Data File", "").getDirectory();
+      if (directory == null) return;
       File[] filesInFolder = new File(directory).listFiles(new FilenameFilter() {
         
         @Override
         public boolean accept(File dir, String name) {
-          if(name.toLowerCase().endsWith(".csv")){
+          if(name.toLowerCase().endsWith(".csv") || TraceFile.isTraceFile(name)){
                return true;
           } else {
                return false;
@@ -56,34 +67,73 @@ public class Average_Traces implements PlugIn {
 
       traces = filesInFolder.length;
       if (traces == 0 ) {
-        IJ.showMessage("This plugin requires CSV files.");
+        IJ.showMessage("This plugin requires CSV or trace files.");
         return;
       }
       else if (traces == 1) {
-        IJ.showMessage("This plugin requires more than one CSV file.");
+        IJ.showMessage("This plugin requires more than one CSV or trace file.");
         return;
       }
       
+      GenericDialog gd = new GenericDialog("Trace Table Output");
+      String[] outputOptions = {"Show tables", "Save as CSV files", "Save as trace files"};
+      gd.addChoice("Channel trace tables:", outputOptions, outputOptions[0]);
+      gd.addCheckbox("Also show saved tables", false);
+      gd.showDialog();
+      if (gd.wasCanceled()) return;
+      outputMode = gd.getNextChoiceIndex();
+      showTraceTables = (outputMode == SHOW_TABLES) || gd.getNextBoolean();
+      if (outputMode != SHOW_TABLES) {
+        outputDirectory = new DirectoryChooser("Folder for Trace Tables").getDirectory();
+        if (outputDirectory == null) return;
+      }
+      
       traceValues = new ResultsTable[traces];
       size = new int[traces];
+      TraceFile firstTrace = null;                                          // Header of the first binary trace file, if any.
       
-      // Import the trace data files into the traceValues ResultsTable array.
+      // Import the trace data files into the traceValues ResultsTable array. Binary trace files are memory-mapped,
+      // so only the CSV files need to be parsed.
       for (int i = 0; i < traces; i++) {
-        traceValues[i] = ResultsTable.open2(filesInFolder[i].getPath());
+        if (TraceFile.isTraceFile(filesInFolder[i].getName())) {
+          TraceFile trace;
+          try {
+            trace = TraceFile.read(filesInFolder[i]);
+          }
+          catch (IOException e) {
+            IJ.showMessage("Could not read " + filesInFolder[i].getName() + ":\n" + e.getMessage());
+            return;
+          }
+          if (firstTrace == null) {
+            firstTrace = trace;
+          }
+          traceValues[i] = trace.toResultsTable();
+        }
+        else {
+          traceValues[i] = ResultsTable.open2(filesInFolder[i].getPath());
+        }
         size[i] = traceValues[i].size();
         traceValues[i].setPrecision(6);
       }
       
-      // Determine the interval between data points. This interval is assumed to be the same for all traces.
-      deltaT = traceValues[0].getValue("Time",  1) - traceValues[0].getValue("Time",  0);
-      
-      // Determine which channels are present by examining the number of columns.
-      columns = traceValues[0].getHeadings().length;
-      if (columns >= 5) {
-        red = true;
+      if (firstTrace != null) {
+        // The trace file header records the interval and the number of channels in the original movie.
+        deltaT = firstTrace.getInterval();
+        red = firstTrace.getChannels() >= 3;
+        blue = firstTrace.getChannels() == 4;
       }
-      if (columns == 7) {
-        blue = true;
+      else {
+        // Determine the interval between data points. This interval is assumed to be the same for all traces.
+        deltaT = traceValues[0].getValue("Time",  1) - traceValues[0].getValue("Time",  0);
+        
+        // Determine which channels are present by examining the number of columns.
+        columns = traceValues[0].getHeadings().length;
+        if (columns >= 5) {
+          red = true;
+        }
+        if (columns == 7) {
+          blue = true;
+        }
       }
       
       ResultsTable averagedTable = new ResultsTable();
@@ -180,22 +230,8 @@ public class Average_Traces implements PlugIn {
         greenTraceSEM[j] /= greenMax;
       }
       
-      // Show the processed data in a ResultsTable.
-      ResultsTable greenTracesTable = new ResultsTable();
-      greenTracesTable.setPrecision(6);
-      time = 0.0;
-      for (int j = 0; j < greenSize; j++) {
-        greenTracesTable.incrementCounter();
-        greenTracesTable.addValue("Time",  time);
-        time += deltaT;
-        for (int i = 0; i < traces; i++) {
-          greenTracesTable.addValue("G raw " + Integer.toString(i), greenRawArray[i][j]);
-        }
-        for (int i = 0; i < traces; i++) {
-          greenTracesTable.addValue("G smooth " + Integer.toString(i), greenSmoothArray[i][j]);
-        }
-      }
-      greenTracesTable.show("Green Traces");
+      // Show or save the processed data.
+      outputTraces("Green Traces", "G", greenRawArray, greenSmoothArray, greenSize);
       
       //----------------------------------------------------------------------------------------------------------------------
       
@@ -290,22 +326,8 @@ public class Average_Traces implements PlugIn {
           redTraceSEM[j] /= redMax;
         }
         
-        // Show the processed data in a ResultsTable.
-        ResultsTable redTracesTable = new ResultsTable();
-        redTracesTable.setPrecision(6);
-        time = 0.0;
-        for (int j = 0; j < redSize; j++) {
-          redTracesTable.incrementCounter();
-          redTracesTable.addValue("Time",  time);
-          time += deltaT;
-          for (int i = 0; i < traces; i++) {
-            redTracesTable.addValue("R raw " + Integer.toString(i), redRawArray[i][j]);
-          }
-          for (int i = 0; i < traces; i++) {
-            redTracesTable.addValue("R smooth " + Integer.toString(i), redSmoothArray[i][j]);
-          }
-        }
-        redTracesTable.show("Red Traces");
+        // Show or save the processed data.
+        outputTraces("Red Traces", "R", redRawArray, redSmoothArray, redSize);
     
       } 
       
@@ -402,22 +424,8 @@ public class Average_Traces implements PlugIn {
           blueTraceSEM[j] /= blueMax;
         }
         
-        // Show the processed data in a ResultsTable.
-        ResultsTable blueTracesTable = new ResultsTable();
-        blueTracesTable.setPrecision(6);
-        time = 0.0;
-        for (int j = 0; j < blueSize; j++) {
-          blueTracesTable.incrementCounter();
-          blueTracesTable.addValue("Time",  time);
-          time += deltaT;
-          for (int i = 0; i < traces; i++) {
-            blueTracesTable.addValue("B raw " + Integer.toString(i), blueRawArray[i][j]);
-          }
-          for (int i = 0; i < traces; i++) {
-            blueTracesTable.addValue("B smooth " + Integer.toString(i), blueSmoothArray[i][j]);
-          }
-        }
-        blueTracesTable.show("Blue Traces");
+        // Show or save the processed data.
+        outputTraces("Blue Traces", "B", blueRawArray, blueSmoothArray, blueSize);
         
       }
       
@@ -695,6 +703,86 @@ public class Average_Traces implements PlugIn {
     
     //========================================================================================================================
     
+    /* Outputs the aligned raw and smoothed traces for one channel. Saved tables are streamed column by column from the 
+     * trace arrays, and a ResultsTable is only built if the table is to be shown. */
+    private void outputTraces(String tableTitle, String prefix, double[][] rawArray, double[][] smoothArray, int traceSize) {
+      String[] headings = new String[2 * traces + 1];
+      headings[0] = "Time";
+      for (int i = 0; i < traces; i++) {
+        headings[i + 1] = prefix + " raw " + Integer.toString(i);
+        headings[traces + i + 1] = prefix + " smooth " + Integer.toString(i);
+      }
+      
+      if (outputMode != SHOW_TABLES) {
+        double[][] values = new double[2 * traces + 1][];
+        values[0] = new double[traceSize];
+        for (int j = 0; j < traceSize; j++) {
+          values[0][j] = j * deltaT;
+        }
+        for (int i = 0; i < traces; i++) {
+          values[i + 1] = rawArray[i];
+          values[traces + i + 1] = smoothArray[i];
+        }
+        
+        try {
+          if (outputMode == SAVE_CSV) {
+            writeCSV(new File(outputDirectory, tableTitle + ".csv"), headings, values, traceSize);
+          }
+          else {
+            int channels = blue ? 4 : (red ? 3 : 2);
+            new TraceFile(channels, deltaT, headings, values).write(new File(outputDirectory, tableTitle + TraceFile.EXTENSION));
+          }
+        }
+        catch (IOException e) {
+          IJ.showMessage("Could not save " + tableTitle + ":\n" + e.getMessage());
+        }
+      }
+      
+      if (showTraceTables) {
+        ResultsTable tracesTable = new ResultsTable();
+        tracesTable.setPrecision(6);
+        time = 0.0;
+        for (int j = 0; j < traceSize; j++) {
+          tracesTable.incrementCounter();
+          tracesTable.addValue(headings[0],  time);
+          time += deltaT;
+          for (int i = 0; i < traces; i++) {
+            tracesTable.addValue(headings[i + 1], rawArray[i][j]);
+          }
+          for (int i = 0; i < traces; i++) {
+            tracesTable.addValue(headings[traces + i + 1], smoothArray[i][j]);
+          }
+        }
+        tracesTable.show(tableTitle);
+      }
+    }
+    
+    //========================================================================================================================
+    
+    /* Writes columns of values to a CSV file, one row per time point, through a buffered writer. */
+    private void writeCSV(File file, String[] headings, double[][] values, int rows) throws IOException {
+      BufferedWriter out = new BufferedWriter(new FileWriter(file), 1 << 16);
+      try {
+        for (int i = 0; i < headings.length; i++) {
+          if (i > 0) out.write(',');
+          out.write(headings[i]);
+        }
+        out.newLine();
+        for (int j = 0; j < rows; j++) {
+          for (int i = 0; i < values.length; i++) {
+            if (i > 0) out.write(',');
+            out.write(IJ.d2s(values[i][j], 6));
+          }
+          out.newLine();
+        }
+      }
+      finally {
+        out.close();
+      }
+    }
+    
+    //========================================================================================================================
+    
     /* Finds the maximum value of a trace. */
     private double findMax(double[] trace) {
       int traceLength = trace.length;
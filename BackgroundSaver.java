@@ -0,0 +1,195 @@
+package IJ_Plugins;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import ij.*;
+import ij.process.LUT;
+
+/* Saves an 8-bit montage series as a TIFF file on a background thread, so that it can still be edited while it is being
+ * written. The saved file holds the planes as they were when the save started: an editor calls planeWillChange before it
+ * changes a plane, and a plane that has not been written yet is then copied first. The planes are written through a
+ * FileChannel to a temporary file next to the target, which replaces the target only when it is complete. A caching
+ * virtual stack that reads its planes from the target is then reopened from the new file, whose layout may differ, and
+ * the planes that the file now holds are unpinned. */
+public class BackgroundSaver {
+
+	private ImagePlus image;
+	private ImageStack stack;                                                // Stack being saved, or null.
+	private byte[][] copies;                                                 // Planes copied before they changed.
+	private boolean[] taken;                                                 // Planes copied or written by the save.
+	private boolean[] changed;                                               // Planes changed during the save.
+	private boolean changedDuringSave;
+	private Thread thread;
+
+	//------------------------------------------------------------------------------------------------------------------------
+
+    public BackgroundSaver(ImagePlus image) {
+      this.image = image;
+    }
+
+    //========================================================================================================================
+
+    public synchronized boolean isSaving() {
+      return thread != null;
+    }
+
+    /* Starts saving the image to a file, and returns false if a save is already in progress. If markSaved is true, the
+     * image is marked as unchanged when the save succeeds, unless it was edited in the meantime. The metadata (Info,
+     * display ranges and channel LUTs) are taken when the save starts. */
+    public synchronized boolean save(final File file, final boolean markSaved) {
+      if (thread != null) return false;
+      stack = image.getStack();
+      copies = new byte[stack.getSize()][];
+      taken = new boolean[stack.getSize()];
+      changed = new boolean[stack.getSize()];
+      changedDuringSave = false;
+
+      final int channels = image.getNChannels(), slices = image.getNSlices(), frames = image.getNFrames();
+      final String info = (String) image.getProperty("Info");
+      final double[] ranges = new double[2 * channels];
+      final byte[][] luts = new byte[channels][];
+      for (int c = 1; c <= channels; c++) {
+        LUT lut = image.isComposite() ? ((CompositeImage) image).getChannelLut(c) : image.getProcessor().getLut();
+        ranges[2 * c - 2] = lut.min;
+        ranges[2 * c - 1] = lut.max;
+        luts[c - 1] = TiffPlaneWriter.lutBytes(lut);
+      }
+      if (image.isComposite()) {                                           // The current channel may be newer than its LUT.
+        ranges[2 * image.getChannel() - 2] = image.getDisplayRangeMin();
+        ranges[2 * image.getChannel() - 1] = image.getDisplayRangeMax();
+      }
+
+      thread = new Thread("Save-" + file.getName()) {
+        public void run() {
+          IOException error = null;
+          try {
+            write(file, channels, slices, frames, info, ranges, luts);
+          }
+          catch (IOException e) {
+            error = e;
+          }
+          finish(file, markSaved, error);
+        }
+      };
+      thread.start();
+      return true;
+    }
+
+    /* Must be called before plane n (1-based) of the image is changed while a save may be in progress. */
+    public synchronized void planeWillChange(int n) {
+      if (thread == null) return;
+      changedDuringSave = true;
+      changed[n - 1] = true;
+      if (taken[n - 1]) return;
+      copies[n - 1] = copy(n);
+      taken[n - 1] = true;
+    }
+
+    /* Waits for a save in progress to finish. */
+    public void waitFor() {
+      Thread saving;
+      synchronized (this) {
+        saving = thread;
+      }
+      if (saving == null) return;
+      try {
+        saving.join();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    //========================================================================================================================
+
+    /* Writes the planes to a temporary file, and then moves it to the target file. */
+    private void write(File file, int channels, int slices, int frames, String info, double[] ranges, byte[][] luts)
+        throws IOException {
+      File temp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".saving");
+      int planes = copies.length;
+      try {
+        TiffPlaneWriter writer = new TiffPlaneWriter(temp, stack.getWidth(), stack.getHeight(), channels, slices, frames,
+                                                     info, ranges, luts);
+        try {
+          for (int n = 1; n <= planes; n++) {
+            writer.writePlane(n, takePlane(n));
+            if (n % 20 == 0) IJ.showProgress(n, planes);
+          }
+        }
+        finally {
+          writer.close();
+          IJ.showProgress(1.0);
+        }
+        if (stack instanceof CachingVirtualStack && ((CachingVirtualStack) stack).readsFrom(file)) {
+          CachingVirtualStack cachedStack = (CachingVirtualStack) stack;
+          synchronized (cachedStack.getBaseLock()) {                       // No plane is read at the old offsets.
+            move(temp, file);
+            cachedStack.reopen();
+          }
+          unpinSaved(cachedStack);
+        }
+        else {
+          move(temp, file);
+        }
+      }
+      catch (IOException e) {
+        temp.delete();
+        throw e;
+      }
+    }
+
+    private void move(File temp, File file) throws IOException {
+      try {
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      }
+      catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+
+    /* Unpins the planes that were not changed during the save, since the file now holds them. A plane that is about to
+     * change is marked here before the editor pins it, so it is not unpinned while it is being edited. */
+    private synchronized void unpinSaved(CachingVirtualStack cachedStack) {
+      for (int n = 1; n <= changed.length; n++) {
+        if (!changed[n - 1]) cachedStack.unpin(n);
+      }
+    }
+
+    /* Returns plane n as it was when the save started: the copy made before it changed, or a copy of the plane now. */
+    private synchronized byte[] takePlane(int n) {
+      byte[] pixels = copies[n - 1];
+      copies[n - 1] = null;
+      if (pixels == null) {
+        pixels = copy(n);
+        taken[n - 1] = true;
+      }
+      return pixels;
+    }
+
+    /* Copies plane n. Some virtual stacks return a copy already, but a caching stack returns the plane itself. */
+    private byte[] copy(int n) {
+      return ((byte[]) stack.getPixels(n)).clone();
+    }
+
+    private synchronized void finish(File file, boolean markSaved, IOException error) {
+      thread = null;
+      stack = null;
+      copies = null;
+      taken = null;
+      changed = null;
+      if (error != null) {
+        IJ.log("The montage could not be saved to " + file.getPath() + ": " + error.getMessage());
+        IJ.showStatus("Save failed");
+        return;
+      }
+      if (markSaved && !changedDuringSave) {
+        image.changes = false;
+      }
+      IJ.showStatus("Saved " + file.getName());
+    }
+
+}
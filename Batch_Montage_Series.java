@@ -0,0 +1,223 @@
+package IJ_Plugins;
+
+import java.awt.GraphicsEnvironment;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import ij.*;
+import ij.plugin.PlugIn;
+import ij.process.ImageProcessor;
+import ij.gui.GenericDialog;
+
+/* Makes montage series for every 8-bit TIFF hyperstack in a folder, without dialogs or a screen, so that it can run on a
+ * headless processing node. The parameters are given as macro options, for example:
+ *
+ *   run("Batch Montage Series", "directory=/data/movies output=/data/montages scale=4 first=1 last=0 width=1900");
+ *
+ * "last=0" uses every slice, and "width" is the target montage width in pixels. The optional "interpolation" (None,
+ * Bilinear or Bicubic) and "autoscale" (first or whole) options match the Make Montage Series dialog. Hyperstacks are
+ * processed on a thread pool, and a new hyperstack is only opened when it fits in the memory budget with the ones already
+ * being processed. Each montage series is written to its TIFF file frame by frame, with the same Info as Make Montage
+ * Series, so only the frames being tiled are held in memory. */
+public class Batch_Montage_Series implements PlugIn {
+
+	private String directory, outputDirectory;
+	private double scaleFactor;
+	private int first, last, montageWidth;                                   // Slice range and target montage width.
+	private int interpolation;
+	private boolean wholeMovie;                                              // Autoscale from all frames?
+	private long budget, reserved;                                           // Memory budget, and bytes reserved by running jobs.
+	private int jobThreads;                                                  // Threads used by each job.
+	private int done, failed;
+
+	private static final String[] INTERPOLATIONS = {"None", "Bilinear", "Bicubic"};
+	private static final double BUDGET_FRACTION = 0.8;                       // Fraction of the free heap that jobs may use.
+
+	//------------------------------------------------------------------------------------------------------------------------
+
+    public void run(String arg) {
+      if (!getParameters()) return;
+
+      File[] files = new File(directory).listFiles(new FilenameFilter() {
+        public boolean accept(File dir, String name) {
+          return (name.endsWith(".tif") || name.endsWith(".TIF")) && !name.endsWith(" Montage.tif");
+        }
+      });
+      if (files == null || files.length == 0) {
+        IJ.log("Batch Montage Series: no TIFF files in " + directory);
+        return;
+      }
+      Arrays.sort(files);
+      new File(outputDirectory).mkdirs();
+
+      budget = (long) ((IJ.maxMemory() - IJ.currentMemory()) * BUDGET_FRACTION);
+      int threads = Math.min(Prefs.getThreads(), files.length);
+      jobThreads = Math.max(1, Prefs.getThreads() / threads);             // So that the jobs together use each processor once.
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      for (final File file : files) {
+        pool.execute(new Runnable() {
+          public void run() {
+            process(file);
+          }
+        });
+      }
+      pool.shutdown();
+      try {
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+      }
+      catch (InterruptedException e) {
+        pool.shutdownNow();
+        Thread.currentThread().interrupt();
+      }
+      IJ.log("Batch Montage Series: " + done + " montage series saved, " + failed + " failed.");
+    }
+
+    //========================================================================================================================
+
+    /* Reads the parameters from the macro options. Without options, a dialog is shown unless ImageJ is headless. */
+    private boolean getParameters() {
+      String options = Macro.getOptions();
+      if (options != null) {
+        directory = Macro.getValue(options, "directory", "");
+        outputDirectory = Macro.getValue(options, "output", directory);
+        scaleFactor = parse(Macro.getValue(options, "scale", "4"));
+        first = (int) parse(Macro.getValue(options, "first", "1"));
+        last = (int) parse(Macro.getValue(options, "last", "0"));
+        montageWidth = (int) parse(Macro.getValue(options, "width", "1900"));
+        interpolation = Arrays.asList(INTERPOLATIONS).indexOf(Macro.getValue(options, "interpolation", "Bicubic"));
+        wholeMovie = Macro.getValue(options, "autoscale", "first").equalsIgnoreCase("whole");
+      }
+      else if (GraphicsEnvironment.isHeadless()) {
+        IJ.log("Batch Montage Series needs macro options, for example:\n" +
+               "run(\"Batch Montage Series\", \"directory=/data/movies scale=4 first=1 last=0 width=1900\");");
+        return false;
+      }
+      else {
+        GenericDialog gd = new GenericDialog("Batch Montage Series");
+        gd.addDirectoryField("Directory:", "");
+        gd.addDirectoryField("Output:", "");
+        gd.addNumericField("Scale Factor:", 4.0, 1);
+        gd.addNumericField("First Slice:", 1, 0);
+        gd.addNumericField("Last Slice (0 for all):", 0, 0);
+        gd.addNumericField("Montage Width:", 1900, 0);
+        gd.addChoice("Interpolation:", INTERPOLATIONS, INTERPOLATIONS[ImageProcessor.BICUBIC]);
+        String[] autoscaleOptions = {"First frame", "Whole movie"};
+        gd.addChoice("Autoscale from:", autoscaleOptions, autoscaleOptions[0]);
+        gd.showDialog();
+        if (gd.wasCanceled()) return false;
+        directory = gd.getNextString();
+        outputDirectory = gd.getNextString();
+        scaleFactor = gd.getNextNumber();
+        first = (int) gd.getNextNumber();
+        last = (int) gd.getNextNumber();
+        montageWidth = (int) gd.getNextNumber();
+        interpolation = gd.getNextChoiceIndex();
+        wholeMovie = gd.getNextChoiceIndex() == 1;
+        if (outputDirectory.length() == 0) outputDirectory = directory;
+      }
+
+      if (directory.length() == 0 || !new File(directory).isDirectory()) {
+        IJ.log("Batch Montage Series: " + directory + " is not a folder.");
+        return false;
+      }
+      if (!(scaleFactor > 0.0) || first < 1 || montageWidth < 1 || interpolation < 0) {
+        IJ.log("Batch Montage Series: the scale factor, slice range, width or interpolation is not valid.");
+        return false;
+      }
+      return true;
+    }
+
+    private double parse(String value) {
+      try {
+        return Double.parseDouble(value);
+      }
+      catch (NumberFormatException e) {
+        return Double.NaN;
+      }
+    }
+
+    //========================================================================================================================
+
+    /* Makes and saves the montage series for one hyperstack, once its memory fits in the budget. */
+    private void process(File file) {
+      long bytes = estimateBytes(file);
+      try {
+        reserve(bytes);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      ImagePlus image = null;
+      try {
+        image = IJ.openImage(file.getPath());
+        if (image == null) {
+          throw new IllegalArgumentException("could not be opened.");
+        }
+        String name = file.getName();
+        File output = new File(outputDirectory, name.substring(0, name.length() - 4) + " Montage.tif");
+        boolean saved = new Make_Montage_Series().writeMontageSeries(image, scaleFactor, first, last, montageWidth,
+                                                                     interpolation, wholeMovie, jobThreads, output);
+        log(file, saved ? "saved to " + output : "aborted.", saved);
+      }
+      catch (IllegalArgumentException e) {
+        log(file, e.getMessage(), false);
+      }
+      catch (IOException e) {
+        log(file, "could not be written: " + e.getMessage(), false);
+      }
+      catch (OutOfMemoryError e) {
+        log(file, "did not fit in memory.", false);
+      }
+      finally {
+        if (image != null) image.close();
+        release(bytes);
+      }
+    }
+
+    /* Estimates the bytes needed for the input hyperstack and the montage frames that are tiled at once. The dimensions
+     * are read from the TIFF header. If they cannot be read, the file size stands in for the input. */
+    private long estimateBytes(File file) {
+      try {
+        TiffPlaneReader reader = new TiffPlaneReader(file.getParent() + File.separator, file.getName());
+        int slices = reader.getNSlices();
+        int trimmedSlices = Math.max(1, Math.min(last < 1 ? slices : last, slices) - first + 1);
+        int framesAtOnce = Math.min(jobThreads, reader.getNFrames());
+        long bytes = (long) reader.getWidth() * reader.getHeight() * reader.getSize() +
+                     Make_Montage_Series.montageBytes(reader.getWidth(), reader.getHeight(), framesAtOnce,
+                                                      scaleFactor, trimmedSlices, montageWidth);
+        reader.close();
+        return bytes;
+      }
+      catch (IOException e) {
+        return file.length();
+      }
+    }
+
+    //========================================================================================================================
+
+    /* Waits until the bytes fit in the memory budget. A job larger than the whole budget runs when no other job is running. */
+    private synchronized void reserve(long bytes) throws InterruptedException {
+      while (reserved > 0 && reserved + bytes > budget) {
+        wait();
+      }
+      reserved += bytes;
+    }
+
+    private synchronized void release(long bytes) {
+      reserved -= bytes;
+      notifyAll();
+    }
+
+    private synchronized void log(File file, String message, boolean success) {
+      if (success) done++;
+      else failed++;
+      IJ.log(file.getName() + ": " + message);
+    }
+
+}
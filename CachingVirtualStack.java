@@ -0,0 +1,245 @@
+package IJ_Plugins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import ij.*;
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+import ij.plugin.FileInfoVirtualStack;
+import ij.process.*;
+
+/* A virtual stack that keeps recently used planes of another virtual stack in memory, up to a size limit, and drops the
+ * least recently used planes beyond it. Planes can be loaded ahead of time with prefetch. Like an ordinary ImageStack,
+ * getPixels returns the cached array itself, so a processor made from it edits the cached plane. A plane that is about
+ * to be edited must be pinned, which keeps it in memory until it is unpinned once its file holds the changes, because
+ * ImageJ's virtual stacks cannot store changes. The planes are those of the base stack, so the methods that add, delete or trim planes throw
+ * UnsupportedOperationException. Planes may be read and prefetched concurrently. If the TIFF file that the planes are
+ * read from is replaced, the base stack must be reopened from the new file while holding getBaseLock. */
+public class CachingVirtualStack extends VirtualStack {
+
+	private volatile ImageStack base;                                        // The stack that planes are read from.
+	private Object baseLock = new Object();                                  // Held while reading from the base stack.
+	private int planes, maxPlanes;                                           // Number of planes, and of cached planes.
+	private LinkedHashMap<Integer, Object> cache;                            // Unpinned planes, least recently used first.
+	private HashMap<Integer, Object> pinned = new HashMap<Integer, Object>(); // Edited planes, never dropped.
+
+	//------------------------------------------------------------------------------------------------------------------------
+
+    /* Caches the planes of a virtual stack in up to maxBytes bytes, but always at least minPlanes planes. */
+    public CachingVirtualStack(ImageStack base, long maxBytes, int minPlanes) {
+      super(base.getWidth(), base.getHeight());
+      this.base = base;
+      planes = base.getSize();
+      long planeBytes = (long) base.getWidth() * base.getHeight() * ((base.getBitDepth() + 7) / 8);
+      maxPlanes = (int) Math.max(minPlanes, Math.min(maxBytes / planeBytes, planes));
+      cache = new LinkedHashMap<Integer, Object>(16, 0.75f, true);
+    }
+
+    //========================================================================================================================
+
+    public Object getPixels(int n) {
+      synchronized (this) {
+        Object pixels = pinned.get(n);
+        if (pixels == null) pixels = cache.get(n);
+        if (pixels != null) return pixels;
+      }
+      return load(n);
+    }
+
+    /* Replaces plane n in memory. A pinned plane stays pinned, and another plane goes back into the cache, since ImagePlus
+     * hands back the unchanged plane on display every time it moves to another one. */
+    public synchronized void setPixels(Object pixels, int n) {
+      checkPlane(n);
+      if (pinned.containsKey(n)) {
+        pinned.put(n, pixels);
+      }
+      else {
+        cache.put(n, pixels);
+        evict();
+      }
+    }
+
+    public ImageProcessor getProcessor(int n) {
+      Object pixels = getPixels(n);
+      switch (getBitDepth()) {
+        case 16:
+          return new ShortProcessor(getWidth(), getHeight(), (short[]) pixels, null);
+        case 24:
+          return new ColorProcessor(getWidth(), getHeight(), (int[]) pixels);
+        case 32:
+          return new FloatProcessor(getWidth(), getHeight(), (float[]) pixels);
+        default:
+          return new ByteProcessor(getWidth(), getHeight(), (byte[]) pixels);
+      }
+    }
+
+    /* Loads plane n into the cache, if it is not there already. */
+    public void prefetch(int n) {
+      synchronized (this) {
+        if (pinned.containsKey(n) || cache.containsKey(n)) return;
+      }
+      load(n);
+    }
+
+    /* Keeps plane n in memory, so that edits to its cached pixels are not lost. */
+    public void pin(int n) {
+      Object pixels = getPixels(n);
+      synchronized (this) {
+        if (pinned.containsKey(n)) return;
+        Object cached = cache.remove(n);
+        pinned.put(n, (cached != null) ? cached : pixels);
+      }
+    }
+
+    /* Lets plane n be dropped from memory again, once the file it is read from holds its pixels. */
+    public synchronized void unpin(int n) {
+      Object pixels = pinned.remove(n);
+      if (pixels == null) return;
+      cache.put(n, pixels);
+      evict();
+    }
+
+    //========================================================================================================================
+
+    /* Reads plane n from the base stack and caches it. If another thread cached the plane in the meantime, its pixels are
+     * returned instead, so that every caller sees the same array. */
+    private Object load(int n) {
+      checkPlane(n);
+      Object pixels;
+      synchronized (baseLock) {                                            // Base stacks need not be thread-safe.
+        pixels = base.getPixels(n);
+      }
+      synchronized (this) {
+        Object cached = pinned.get(n);
+        if (cached == null) cached = cache.get(n);
+        if (cached != null) return cached;
+        cache.put(n, pixels);
+        evict();
+      }
+      return pixels;
+    }
+
+    /* Drops the least recently used planes beyond the size limit. */
+    private void evict() {
+      Iterator<Integer> eldest = cache.keySet().iterator();
+      while (cache.size() > maxPlanes) {
+        eldest.next();
+        eldest.remove();
+      }
+    }
+
+    /* Returns true if the planes are read from the given TIFF file. */
+    public boolean readsFrom(File file) {
+      String directory = getDirectory(), name = getFileName(1);
+      if (directory == null || name == null) return false;
+      try {
+        return new File(directory, name).getCanonicalFile().equals(file.getCanonicalFile());
+      }
+      catch (IOException e) {
+        return false;
+      }
+    }
+
+    /* Returns the lock that is held while a plane is read from the base stack. */
+    public Object getBaseLock() {
+      return baseLock;
+    }
+
+    /* Opens the base stack again from its TIFF file, after the file has been replaced by one with the same planes, which
+     * may be at other offsets. The caller must hold getBaseLock from before the file is replaced, so that no plane is read
+     * from the old offsets in between. The cached planes are kept. */
+    public void reopen() throws IOException {
+      String directory = getDirectory(), name = getFileName(1);
+      if (!directory.endsWith(File.separator)) directory += File.separator;
+      FileInfo[] info = new TiffDecoder(directory, name).getTiffInfo();
+      if (info == null || info.length == 0) {
+        throw new IOException(name + " could not be read again.");
+      }
+      ImageStack reopened = (info.length > 1) ? new FileInfoVirtualStack(info) : new FileInfoVirtualStack(info[0], false);
+      if (reopened.getSize() != planes || reopened.getWidth() != getWidth() || reopened.getHeight() != getHeight()) {
+        throw new IOException(name + " no longer has the planes of the montage.");
+      }
+      base = reopened;
+    }
+
+    //========================================================================================================================
+
+    private void checkPlane(int n) {
+      if (n < 1 || n > planes) {
+        throw new IllegalArgumentException("Argument out of range: " + n);
+      }
+    }
+
+    //========================================================================================================================
+
+    public int getSize() {
+      return planes;
+    }
+
+    public int size() {
+      return planes;
+    }
+
+    public int getBitDepth() {
+      return base.getBitDepth();
+    }
+
+    public String getSliceLabel(int n) {
+      return base.getSliceLabel(n);
+    }
+
+    public void setSliceLabel(String label, int n) {
+      base.setSliceLabel(label, n);
+    }
+
+    public String getDirectory() {
+      return (base instanceof VirtualStack) ? ((VirtualStack) base).getDirectory() : null;
+    }
+
+    public String getFileName(int n) {
+      return (base instanceof VirtualStack) ? ((VirtualStack) base).getFileName(n) : null;
+    }
+
+    /* The planes are those of the base stack, so the methods that would change their number throw instead of leaving the
+     * stack inconsistent, as in DiskBackedStack. */
+    public void addSlice(String fileName) {
+      throw fixedSize();
+    }
+
+    public void addSlice(String sliceLabel, Object pixels) {
+      throw fixedSize();
+    }
+
+    public void addSlice(String sliceLabel, ImageProcessor ip) {
+      throw fixedSize();
+    }
+
+    public void addSlice(String sliceLabel, ImageProcessor ip, int n) {
+      throw fixedSize();
+    }
+
+    public void deleteSlice(int n) {
+      throw fixedSize();
+    }
+
+    public void deleteLastSlice() {
+      throw fixedSize();
+    }
+
+    public void trim() {
+      throw fixedSize();
+    }
+
+    public void reduce(int factor) {
+      throw fixedSize();
+    }
+
+    private UnsupportedOperationException fixedSize() {
+      return new UnsupportedOperationException("CachingVirtualStack has a fixed number of planes.");
+    }
+
+}
@@ -0,0 +1,75 @@
+package IJ_Plugins;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.*;
+import ij.util.ThreadUtil;
+
+/* Cumulative histograms of every (channel, frame) plane of an 8-bit montage series, built once in parallel. For each plane,
+ * above[v] is the number of pixels with a value of at least v, so above[] never increases with v. A display maximum that
+ * leaves a given number of brighter pixels is then found by a binary search instead of a scan of the histogram. */
+public class ChannelHistograms {
+
+	private int channels, frames, pixelCount;
+	private int[][][] above;                                                 // [channel - 1][frame - 1][value], 257 values.
+
+	//------------------------------------------------------------------------------------------------------------------------
+
+    /* Builds the cumulative histograms of an 8-bit hyperstack with one slice, dividing the planes among worker threads. */
+    public ChannelHistograms(ImagePlus image) {
+      channels = image.getNChannels();
+      frames = image.getNFrames();
+      pixelCount = image.getWidth() * image.getHeight();
+      above = new int[channels][frames][];
+
+      final ImageStack stack = image.getStack();
+      final int planes = channels * frames;
+      final AtomicInteger nextPlane = new AtomicInteger(0);
+      Thread[] threads = ThreadUtil.createThreadArray(Math.min(Prefs.getThreads(), planes));
+      for (int i = 0; i < threads.length; i++) {
+        threads[i] = new Thread("Histograms-" + i) {
+          public void run() {
+            int[] histogram = new int[256];
+            for (int n = nextPlane.getAndIncrement(); n < planes; n = nextPlane.getAndIncrement()) {
+              int ch = n % channels, t = n / channels;                     // Planes are in channel, then frame order.
+              Arrays.fill(histogram, 0);
+              PixelKernels.histogram((byte[]) stack.getPixels(n + 1), histogram);
+              int[] cumulative = new int[257];
+              for (int v = 255; v >= 0; v--) {
+                cumulative[v] = cumulative[v + 1] + histogram[v];
+              }
+              above[ch][t] = cumulative;
+            }
+          }
+        };
+      }
+      ThreadUtil.startAndJoin(threads);
+    }
+
+    //========================================================================================================================
+
+    public int getPixelCount() {
+      return pixelCount;
+    }
+
+    /* Returns the highest value v for which more than "cutoff" pixels of the plane have a value of at least v, or 0 if
+     * there is no such value. This is the value found by summing the histogram down from 255 until the sum exceeds the
+     * cutoff. */
+    public int displayMax(int channel, int frame, int cutoff) {
+      int[] cumulative = above[channel - 1][frame - 1];
+      int low = 0, high = 255;
+      if (cumulative[0] <= cutoff) return 0;
+      while (low < high) {                                                   // cumulative[low] > cutoff throughout.
+        int middle = (low + high + 1) / 2;
+        if (cumulative[middle] > cutoff) {
+          low = middle;
+        }
+        else {
+          high = middle - 1;
+        }
+      }
+      return low;
+    }
+
+}
@@ -0,0 +1,259 @@
+package IJ_Plugins;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import ij.*;
+import ij.process.*;
+
+/* An 8-bit stack whose planes are kept in a temporary raw file instead of the Java heap. The file is memory-mapped in
+ * chunks of whole planes, so reading or writing a plane is a copy between the page cache and a byte array, and the
+ * operating system decides how much of the stack stays in memory. As with other virtual stacks, getPixels returns a copy
+ * and a changed plane must be written back with setPixels. Planes may be read and written concurrently. The number of
+ * planes is fixed when the stack is made: the methods that add, delete or trim planes throw UnsupportedOperationException.
+ * The temporary file is deleted by close, which closeWith calls when the image that shows the stack is closed, and
+ * otherwise when ImageJ exits. */
+public class DiskBackedStack extends VirtualStack implements ImageListener {
+
+	private int planeSize, planes;                                           // Bytes per plane, and number of planes.
+	private int planesPerChunk;                                              // Planes in each mapped chunk.
+	private MappedByteBuffer[] chunks;
+	private String[] labels;
+	private File file;
+	private ImagePlus owner;                                                 // Image whose closing closes the stack.
+	private ReentrantReadWriteLock mapLock = new ReentrantReadWriteLock();   // Write-locked while the file is unmapped.
+
+	private static final double MEMORY_FRACTION = 0.8;                       // Fraction of the free heap that new stacks may use.
+
+	//------------------------------------------------------------------------------------------------------------------------
+
+    /* Creates a black stack of the given size in a new temporary file. */
+    public DiskBackedStack(int width, int height, int size) throws IOException {
+      super(width, height);
+      planeSize = width * height;
+      planes = size;
+      planesPerChunk = Math.max(1, Integer.MAX_VALUE / planeSize);
+      labels = new String[size];
+
+      file = File.createTempFile("DiskBackedStack", ".raw");
+      file.deleteOnExit();
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        raf.setLength((long) planeSize * size);                            // The new file reads as zeros.
+        FileChannel channel = raf.getChannel();
+        chunks = new MappedByteBuffer[(size + planesPerChunk - 1) / planesPerChunk];
+        for (int i = 0; i < chunks.length; i++) {
+          long start = (long) i * planesPerChunk * planeSize;
+          long length = (long) Math.min(planesPerChunk, size - i * planesPerChunk) * planeSize;
+          chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, length);
+        }
+      }
+      finally {
+        raf.close();                                                       // The mappings stay valid after closing.
+      }
+    }
+
+    //========================================================================================================================
+
+    /* Returns the number of bytes that a stack of 8-bit planes will use. */
+    public static long bytes(int width, int height, int size) {
+      return (long) width * height * size;
+    }
+
+    /* Checks whether the given number of bytes fits in the part of the free heap that new stacks may use. */
+    public static boolean fitsInMemory(long bytes) {
+      return bytes <= (long) ((IJ.maxMemory() - IJ.currentMemory()) * MEMORY_FRACTION);
+    }
+
+    /* Returns a black 8-bit stack, in memory if it fits in the heap budget and otherwise backed by a temporary file. In
+     * either case, the caller must not add or delete planes. */
+    public static ImageStack createStack(int width, int height, int size) throws IOException {
+      if (fitsInMemory(bytes(width, height, size))) {
+        ImageStack stack = new ImageStack(width, height);
+        for (int n = 1; n <= size; n++) {
+          stack.addSlice(null, new byte[width * height]);
+        }
+        return stack;
+      }
+      return new DiskBackedStack(width, height, size);
+    }
+
+    //========================================================================================================================
+
+    /* After the stack is closed, the planes read as black. */
+    public Object getPixels(int n) {
+      byte[] pixels = new byte[planeSize];
+      mapLock.readLock().lock();
+      try {
+        if (chunks != null) plane(n).get(pixels);
+      }
+      finally {
+        mapLock.readLock().unlock();
+      }
+      return pixels;
+    }
+
+    /* After the stack is closed, the planes are not stored. */
+    public void setPixels(Object pixels, int n) {
+      mapLock.readLock().lock();
+      try {
+        if (chunks != null) plane(n).put((byte[]) pixels, 0, planeSize);
+      }
+      finally {
+        mapLock.readLock().unlock();
+      }
+    }
+
+    public ImageProcessor getProcessor(int n) {
+      return new ByteProcessor(getWidth(), getHeight(), (byte[]) getPixels(n));
+    }
+
+    /* Returns a view of plane n (1-based) with its own position, so that threads do not share buffer state. */
+    private ByteBuffer plane(int n) {
+      if (n < 1 || n > planes) {
+        throw new IllegalArgumentException("Argument out of range: " + n);
+      }
+      ByteBuffer buffer = chunks[(n - 1) / planesPerChunk].duplicate();
+      buffer.position(((n - 1) % planesPerChunk) * planeSize);
+      return buffer;
+    }
+
+    //========================================================================================================================
+
+    public int getSize() {
+      return planes;
+    }
+
+    public int size() {
+      return planes;
+    }
+
+    public int getBitDepth() {
+      return 8;
+    }
+
+    public String getSliceLabel(int n) {
+      return labels[n - 1];
+    }
+
+    public void setSliceLabel(String label, int n) {
+      labels[n - 1] = label;
+    }
+
+    public String getDirectory() {
+      return null;
+    }
+
+    public String getFileName(int n) {
+      return null;
+    }
+
+    /* The planes are fixed when the file is mapped, so the methods that would change their number throw instead of
+     * leaving the stack inconsistent. VirtualStack ignores most of them, and addSlice(ImageProcessor) and
+     * addUnsignedShortSlice come through the ones below. */
+    public void addSlice(String fileName) {
+      throw fixedSize();
+    }
+
+    public void addSlice(String sliceLabel, Object pixels) {
+      throw fixedSize();
+    }
+
+    public void addSlice(String sliceLabel, ImageProcessor ip) {
+      throw fixedSize();
+    }
+
+    public void addSlice(String sliceLabel, ImageProcessor ip, int n) {
+      throw fixedSize();
+    }
+
+    public void deleteSlice(int n) {
+      throw fixedSize();
+    }
+
+    public void deleteLastSlice() {
+      throw fixedSize();
+    }
+
+    public void trim() {
+      throw fixedSize();
+    }
+
+    public void reduce(int factor) {
+      throw fixedSize();
+    }
+
+    private UnsupportedOperationException fixedSize() {
+      return new UnsupportedOperationException("DiskBackedStack has a fixed number of planes.");
+    }
+
+    //========================================================================================================================
+
+    /* Closes the stack when the given image is closed. The image must show this stack, and the stack may not be used
+     * after that. */
+    public void closeWith(ImagePlus image) {
+      owner = image;
+      ImagePlus.addImageListener(this);
+    }
+
+    public void imageClosed(ImagePlus imp) {
+      if (imp != owner) return;
+      ImagePlus.removeImageListener(this);
+      close();
+    }
+
+    public void imageOpened(ImagePlus imp) {}
+
+    public void imageUpdated(ImagePlus imp) {}
+
+    /* Unmaps and deletes the temporary file once no plane is being read or written. The mappings are released at once
+     * where the JVM allows it, because Windows cannot delete a file that is still mapped. If the file cannot be deleted
+     * now, it is deleted when ImageJ exits. */
+    public void close() {
+      mapLock.writeLock().lock();
+      try {
+        if (chunks == null) return;
+        for (MappedByteBuffer chunk : chunks) {
+          unmap(chunk);
+        }
+        chunks = null;
+      }
+      finally {
+        mapLock.writeLock().unlock();
+      }
+      file.delete();
+    }
+
+    /* Releases a mapping without waiting for garbage collection, with Unsafe.invokeCleaner in Java 9 and later, or the
+     * buffer's cleaner in Java 8. Where neither is available, the mapping is released when it is garbage collected. */
+    private static void unmap(MappedByteBuffer buffer) {
+      try {
+        Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+        Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+        theUnsafe.setAccessible(true);
+        unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(theUnsafe.get(null), buffer);
+        return;
+      }
+      catch (Exception e) {}
+      try {
+        Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+        cleanerMethod.setAccessible(true);
+        Object cleaner = cleanerMethod.invoke(buffer);
+        cleaner.getClass().getMethod("clean").invoke(cleaner);
+      }
+      catch (Exception e) {}
+    }
+
+    /* Returns the temporary file, for messages. */
+    public File getFile() {
+      return file;
+    }
+
+}
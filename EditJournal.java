@@ -0,0 +1,294 @@
+package IJ_Plugins;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import ij.ImageStack;
+
+/* Undo and redo for edits to the planes of an 8-bit stack. Each plane is divided into TILE x TILE tiles, and an edit keeps
+ * only the tiles that it changed: their pixels before and after the edit, each plane's tiles deflated together. The
+ * journal stays within a memory budget by moving the oldest edits to a temporary file, from which they are read back when
+ * they are undone. Planes of one edit may be recorded concurrently. */
+public class EditJournal {
+
+	private int width, height, tilesAcross, tilesDown;
+	private long memoryBudget, memoryUsed;                                   // Bytes of compressed tiles held in memory.
+	private LinkedList<Edit> undoList = new LinkedList<Edit>();              // Most recent edit last.
+	private LinkedList<Edit> redoList = new LinkedList<Edit>();
+	private Edit currentEdit;
+	private File spillFile;
+	private RandomAccessFile spill;
+
+	private static final int TILE = 64;
+
+	//------------------------------------------------------------------------------------------------------------------------
+
+    public EditJournal(int width, int height, long memoryBudget) {
+      this.width = width;
+      this.height = height;
+      this.memoryBudget = memoryBudget;
+      tilesAcross = (width + TILE - 1) / TILE;
+      tilesDown = (height + TILE - 1) / TILE;
+    }
+
+    //========================================================================================================================
+
+    /* Starts an edit. The planes it changes are then recorded with recordPlane, and the edit is closed with endEdit. */
+    public synchronized void beginEdit(String name) {
+      currentEdit = new Edit(name);
+    }
+
+    /* Records the change to plane n (1-based), given copies of its pixels before the edit and its pixels after the edit.
+     * Nothing is recorded if the plane did not change. */
+    public void recordPlane(int n, byte[] before, byte[] after) {
+      PlaneChange change = compare(n, before, after);
+      if (change == null) return;
+      synchronized (this) {
+        currentEdit.changes.add(change);
+        memoryUsed += change.before.length + change.after.length;
+      }
+    }
+
+    /* Closes the current edit. An edit that changed nothing is dropped. Otherwise it can be undone, and the edits that
+     * were undone before it can no longer be redone. */
+    public synchronized void endEdit() throws IOException {
+      Edit edit = currentEdit;
+      currentEdit = null;
+      if (edit == null || edit.changes.isEmpty()) return;
+      for (Edit redo : redoList) {
+        for (PlaneChange change : redo.changes) {
+          if (change.before != null) memoryUsed -= change.before.length + change.after.length;
+        }
+      }
+      redoList.clear();
+      undoList.addLast(edit);
+      spillOldEdits();
+    }
+
+    /* Undoes the most recent edit in the stack. Returns its name, or null if there is nothing to undo. */
+    public synchronized String undo(ImageStack stack) throws IOException {
+      if (undoList.isEmpty()) return null;
+      Edit edit = undoList.removeLast();
+      apply(edit, stack, true);
+      redoList.addLast(edit);
+      return edit.name;
+    }
+
+    /* Redoes the most recently undone edit. Returns its name, or null if there is nothing to redo. */
+    public synchronized String redo(ImageStack stack) throws IOException {
+      if (redoList.isEmpty()) return null;
+      Edit edit = redoList.removeLast();
+      apply(edit, stack, false);
+      undoList.addLast(edit);
+      return edit.name;
+    }
+
+    /* Returns the planes that the next undo (or redo) will change, or an empty array if there is nothing to undo. */
+    public synchronized int[] nextPlanes(boolean redo) {
+      LinkedList<Edit> list = redo ? redoList : undoList;
+      if (list.isEmpty()) return new int[0];
+      ArrayList<PlaneChange> changes = list.getLast().changes;
+      int[] planes = new int[changes.size()];
+      for (int i = 0; i < planes.length; i++) {
+        planes[i] = changes.get(i).plane;
+      }
+      return planes;
+    }
+
+    /* Discards the journal and deletes its temporary file. */
+    public synchronized void close() {
+      undoList.clear();
+      redoList.clear();
+      memoryUsed = 0;
+      if (spill != null) {
+        try {
+          spill.close();
+        }
+        catch (IOException e) {}
+        spillFile.delete();
+        spill = null;
+      }
+    }
+
+    //========================================================================================================================
+
+    /* Finds the tiles that differ between before and after, and deflates their pixels. */
+    private PlaneChange compare(int n, byte[] before, byte[] after) {
+      int[] tiles = new int[tilesAcross * tilesDown];
+      int count = 0, bytes = 0;
+      for (int tile = 0; tile < tiles.length; tile++) {
+        int x0 = (tile % tilesAcross) * TILE, y0 = (tile / tilesAcross) * TILE;
+        int w = Math.min(TILE, width - x0), h = Math.min(TILE, height - y0);
+        boolean changed = false;
+        for (int y = y0; y < y0 + h && !changed; y++) {
+          int offset = y * width + x0;
+          for (int i = offset; i < offset + w; i++) {
+            if (before[i] != after[i]) {
+              changed = true;
+              break;
+            }
+          }
+        }
+        if (changed) {
+          tiles[count++] = tile;
+          bytes += w * h;
+        }
+      }
+      if (count == 0) return null;
+
+      PlaneChange change = new PlaneChange();
+      change.plane = n;
+      change.tiles = new int[count];
+      System.arraycopy(tiles, 0, change.tiles, 0, count);
+      change.length = bytes;
+      byte[] buffer = new byte[bytes];
+      gather(change.tiles, before, buffer);
+      change.before = deflate(buffer);
+      gather(change.tiles, after, buffer);
+      change.after = deflate(buffer);
+      return change;
+    }
+
+    /* Restores the pixels before or after an edit, for every plane that it changed. */
+    private void apply(Edit edit, ImageStack stack, boolean undo) throws IOException {
+      for (PlaneChange change : edit.changes) {
+        byte[] compressed = undo ? change.before : change.after;
+        if (compressed == null) {
+          compressed = readSpilled(change, undo);
+        }
+        byte[] buffer = inflate(compressed, change.length);
+        byte[] pixels = (byte[]) stack.getPixels(change.plane);
+        scatter(change.tiles, buffer, pixels);
+        stack.setPixels(pixels, change.plane);
+      }
+    }
+
+    /* Copies the pixels of the listed tiles, row by row, from a plane into a buffer. */
+    private void gather(int[] tiles, byte[] plane, byte[] buffer) {
+      int position = 0;
+      for (int tile : tiles) {
+        int x0 = (tile % tilesAcross) * TILE, y0 = (tile / tilesAcross) * TILE;
+        int w = Math.min(TILE, width - x0), h = Math.min(TILE, height - y0);
+        for (int y = y0; y < y0 + h; y++) {
+          System.arraycopy(plane, y * width + x0, buffer, position, w);
+          position += w;
+        }
+      }
+    }
+
+    /* Copies the pixels of the listed tiles from a buffer back into a plane. */
+    private void scatter(int[] tiles, byte[] buffer, byte[] plane) {
+      int position = 0;
+      for (int tile : tiles) {
+        int x0 = (tile % tilesAcross) * TILE, y0 = (tile / tilesAcross) * TILE;
+        int w = Math.min(TILE, width - x0), h = Math.min(TILE, height - y0);
+        for (int y = y0; y < y0 + h; y++) {
+          System.arraycopy(buffer, position, plane, y * width + x0, w);
+          position += w;
+        }
+      }
+    }
+
+    //========================================================================================================================
+
+    private byte[] deflate(byte[] data) {
+      Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+      deflater.setInput(data);
+      deflater.finish();
+      byte[] buffer = new byte[Math.max(64, data.length / 4)];
+      int length = 0;
+      while (!deflater.finished()) {
+        if (length == buffer.length) {
+          byte[] larger = new byte[2 * buffer.length];
+          System.arraycopy(buffer, 0, larger, 0, length);
+          buffer = larger;
+        }
+        length += deflater.deflate(buffer, length, buffer.length - length);
+      }
+      deflater.end();
+      byte[] compressed = new byte[length];
+      System.arraycopy(buffer, 0, compressed, 0, length);
+      return compressed;
+    }
+
+    private byte[] inflate(byte[] compressed, int length) throws IOException {
+      Inflater inflater = new Inflater();
+      inflater.setInput(compressed);
+      byte[] data = new byte[length];
+      try {
+        int position = 0;
+        while (position < length && !inflater.finished()) {
+          position += inflater.inflate(data, position, length - position);
+        }
+      }
+      catch (DataFormatException e) {
+        throw new IOException("Damaged undo data: " + e.getMessage());
+      }
+      finally {
+        inflater.end();
+      }
+      return data;
+    }
+
+    //========================================================================================================================
+
+    /* Moves the compressed tiles of the oldest edits to the temporary file until the rest fit in the memory budget. */
+    private void spillOldEdits() throws IOException {
+      for (Edit edit : undoList) {
+        if (memoryUsed <= memoryBudget) return;
+        for (PlaneChange change : edit.changes) {
+          if (change.before == null) continue;
+          if (spill == null) {
+            spillFile = File.createTempFile("EditJournal", ".tmp");
+            spillFile.deleteOnExit();
+            spill = new RandomAccessFile(spillFile, "rw");
+          }
+          change.offset = spill.length();
+          change.beforeLength = change.before.length;
+          change.afterLength = change.after.length;
+          spill.seek(change.offset);
+          spill.write(change.before);
+          spill.write(change.after);
+          memoryUsed -= change.before.length + change.after.length;
+          change.before = null;
+          change.after = null;
+        }
+      }
+    }
+
+    private byte[] readSpilled(PlaneChange change, boolean before) throws IOException {
+      byte[] compressed = new byte[before ? change.beforeLength : change.afterLength];
+      spill.seek(before ? change.offset : change.offset + change.beforeLength);
+      spill.readFully(compressed);
+      return compressed;
+    }
+
+    //========================================================================================================================
+
+    /* One undoable edit: a name for messages, and the changed tiles of each plane. */
+    private static class Edit {
+      String name;
+      ArrayList<PlaneChange> changes = new ArrayList<PlaneChange>();
+
+      Edit(String name) {
+        this.name = name;
+      }
+    }
+
+    /* The changed tiles of one plane. The compressed pixels are null once they have been moved to the temporary file. */
+    private static class PlaneChange {
+      int plane;
+      int[] tiles;                                                           // Tile indexes, across then down.
+      int length;                                                            // Uncompressed bytes of all the tiles.
+      byte[] before, after;
+      long offset;                                                           // Position in the temporary file.
+      int beforeLength, afterLength;
+    }
+
+}
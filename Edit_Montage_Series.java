@@ -5,13 +5,25 @@ import ij.plugin.PlugIn;
 import ij.plugin.RoiEnlarger;
 import ij.plugin.Duplicator;
 import ij.process.*;
-import ij.measure.*;
 import ij.gui.*;
+import ij.io.FileInfo;
+import ij.io.SaveDialog;
+import ij.util.ThreadUtil;
 
 import java.awt.*;
 import java.awt.event.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
-/* Enables the user to edit a 4-channel montage series to isolate individual cisternae. */
+/* Enables the user to edit a 4-channel montage series to isolate individual cisternae, with the original montage shown
+ * alongside for reference. */
 public class Edit_Montage_Series implements PlugIn, KeyListener, ImageListener, AdjustmentListener {
   
 	private ImagePlus originalImage, editedImage;
@@ -25,13 +37,30 @@ public class Edit_Montage_Series implements PlugIn, KeyListener, ImageListener,
 	private String[] parameters = new String[6];                           // Montage parameters.
 	
 	private static final int XCORNER = 10, YCORNER = 100, COLOR_ADJUST = 1000;
+	private static final double MIN_OVERLAP = 0.25;                        // Tracked spot fraction inside the predicted Roi.
+	private static final double SEARCH_MARGIN = 2.0;                       // Pixels added to the predicted Roi.
 	private int[] adjust = new int[11];
 	private int[] channelAdjust = {5, 5, 5};                            	  // Array index for adjust[].
-	private ImageStatistics originalStats;
+	private ChannelHistograms originalHistograms;                          // Cumulative histograms of the original montage.
 	private double wandAdjuster = 0.5;                                     // Adjusts borders for an automated Roi.
 	private double fractionIncrement = 0.15;                               // Change for every 2x with an automated Roi.
 	private ShapeRoi[] autoRoi;
 	private ShapeRoi multiSliceRoi;
+	private PolygonRoi seedRoi;                                            // Spot outlined by the user for multiSliceRoi.
+	private SpotTracer tracer;                                             // Traces spots in the edited montage.
+	private EditJournal journal;                                           // Undo and redo for the edited montage.
+	private BackgroundSaver saver, autosaver;                              // Save and autosave the edited montage.
+	private AtomicInteger editCount = new AtomicInteger(0);                // Planes changed, for autosaving.
+	private int autosavedEdits;                                            // editCount at the last autosave.
+	private javax.swing.Timer autosaveTimer;
+	private int targetChannel, targetFrame;                                // Position that arrow keys have moved to.
+	private boolean navigationPending;                                     // The target has not been drawn yet.
+	private ExecutorService worker;                                        // Runs the slower commands, one at a time.
+	private AtomicBoolean busy = new AtomicBoolean(false);                 // A command is running on the worker.
+	private FramePrefetcher prefetcher;                                    // Loads nearby frames of virtual stacks.
+	private LatencyRecorder latency = new LatencyRecorder();               // Times of the commands.
+	private String timedCommand;                                           // Command of the key being handled.
+	private boolean dispatched;                                            // It was sent to the worker thread.
 	
 	//------------------------------------------------------------------------------------------------------------------------  
 	
@@ -75,10 +104,7 @@ public class Edit_Montage_Series implements PlugIn, KeyListener, ImageListener,
       width = extractParameter(parameters[4]);
       height = extractParameter(parameters[5]);
       
-      Calibration cal = originalImage.getCalibration();
-      originalImage.setCalibration(null);
-      originalStats = originalImage.getStatistics();                        // Get uncalibrated statistics.
-      originalImage.setCalibration(cal);
+      originalHistograms = new ChannelHistograms(originalImage);           // Uncalibrated, for each channel and frame.
      
       GenericDialog gd = new GenericDialog("Choose Edited Montage");
       String[] secondFileOptions = {"Open Existing Montage", "Create New Montage"};
@@ -115,6 +141,15 @@ public class Edit_Montage_Series implements PlugIn, KeyListener, ImageListener,
         editedImage.show();
       }
       
+      // Cache the planes of montages opened as virtual stacks, and load the frames around the current one ahead of time.
+      cacheVirtualStacks();
+      
+      // Draw both montages with the multithreaded composite renderer.
+      originalImage = showWithMontageRenderer(originalImage);
+      editedImage = showWithMontageRenderer(editedImage);
+      original = originalImage.getProcessor();
+      originalWindow = originalImage.getWindow();
+      
       edited = editedImage.getProcessor();
       editedWindow = editedImage.getWindow();
       
@@ -143,16 +178,103 @@ public class Edit_Montage_Series implements PlugIn, KeyListener, ImageListener,
       
       // Create a ShapeRoi array to hold the Roi's that will be generated by auto-tracing.
       autoRoi = new ShapeRoi[slices];
+      tracer = new SpotTracer(editedImage.getWidth(), editedImage.getHeight(), wandAdjuster, fractionIncrement);
+      
+      // Keep up to "montage.undo.mb" megabytes of compressed undo data in memory, and the rest in a temporary file.
+      long undoMemory = (long) Prefs.get("montage.undo.mb", 256) * 1024 * 1024;
+      journal = new EditJournal(editedImage.getWidth(), editedImage.getHeight(), undoMemory);
+      
+      // Run the slower commands on a worker thread.
+      worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "Edit_Montage_Series");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      
+      // Save in the background, and autosave every "montage.autosave.minutes" minutes if that is not 0.
+      saver = new BackgroundSaver(editedImage);
+      autosaver = new BackgroundSaver(editedImage);
+      int autosaveMinutes = (int) Prefs.get("montage.autosave.minutes", 0);
+      if (autosaveMinutes > 0) {
+        autosaveTimer = new javax.swing.Timer(autosaveMinutes * 60000, new ActionListener() {
+          public void actionPerformed(ActionEvent e) {
+            autosave();
+          }
+        });
+        autosaveTimer.start();
+      }
+      
+      // Clean up when either montage is closed. The windows replaced by showWithMontageRenderer are already closed.
+      ImagePlus.addImageListener(this);
     }
 
     //========================================================================================================================
     
-    /* Implements custom responses to specific key presses. */
+    /* Handles a key press, and records the compute and redraw times of its command. Commands that run on the worker thread
+     * are timed there. */
     public void keyPressed(KeyEvent e) {
+      timedCommand = busy.get() ? null : commandName(e);
+      if (timedCommand == null) {
+        handleKey(e);
+        return;
+      }
+      dispatched = false;
+      long start = System.nanoTime(), drawn = drawNanos();
+      handleKey(e);
+      if (!dispatched) recordLatency(timedCommand, start, drawn);
+    }
+    
+    /* Returns the name under which the command of a key is timed, or null if it is not timed. Moves with the Left and Right
+     * arrows are timed when they are drawn. */
+    private String commandName(KeyEvent e) {
+      switch (e.getKeyCode()) {
+        case 8:
+          return "Delete";
+        case 10:
+          return "Return";
+        case 38:
+        case 40:
+          return "Display range";
+        case 84:
+          return "Track";
+        case 85:
+          return "Undo";
+      }
+      switch (Character.toUpperCase(e.getKeyChar())) {
+        case 'E':
+          return "Erase";
+        case 'S':
+          return "Save";
+        case 'Z':
+          return "Copy original";
+        case 'R':
+        case 'G':
+        case 'B':
+        case 'Y':
+          return "Channel toggle";
+      }
+      return null;
+    }
+    
+    /* Implements custom responses to specific key presses. */
+    private void handleKey(KeyEvent e) {
       int keyCode = e.getKeyCode();
       char keyChar = Character.toUpperCase(e.getKeyChar());
       boolean modifier = e.getModifiers() == 8;        					// Opt (or Alt) key
       
+      if (busy.get()) {                                                 // only Esc while a command runs
+        if (keyCode == KeyEvent.VK_ESCAPE)
+          IJ.setKeyDown(KeyEvent.VK_ESCAPE);
+        else
+          IJ.beep();
+        return;
+      }
+      if (keyCode != 37 && keyCode != 39) {                             // other keys see the latest position
+        showTargetPosition();
+      }
+      
       ImageWindow activeWindow = WindowManager.getCurrentWindow();
       ImagePlus activeImage = activeWindow.getImagePlus();
       ImagePlus inactiveImage = activeImage.equals(editedImage)?originalImage:editedImage;
@@ -170,10 +292,6 @@ public class Edit_Montage_Series implements PlugIn, KeyListener, ImageListener,
         activeChannelsOriginal[0] = activeChannelsOriginal[2] = false;
         activeChannelsEdited[0] = activeChannelsEdited[2] = false;
       }
-        
-      int[] histogram = originalStats.histogram;
-      boolean found = false;
-      int i, cutoff, max, sum;
       
       editedTitle = editedImage.getTitle();                             // in case the user changed it
       
@@ -228,11 +346,15 @@ public class Edit_Montage_Series implements PlugIn, KeyListener, ImageListener,
               return;
             }
           }
+          int plane = editedImage.getCurrentSlice();
+          byte[] before = ((byte[]) edited.getPixels()).clone();
+          planeWillChange(plane);
           edited.setColor(Color.black);
           if (modifier)
             edited.fill(roi);                                             // Opt (or Alt) => delete the Roi
           else
             edited.fillOutside(roi);
+          recordEdit("Delete", plane, before);
           editedImage.killRoi();
           editedImage.updateAndDraw();
           editedImage.changes = true;
@@ -240,6 +362,34 @@ public class Edit_Montage_Series implements PlugIn, KeyListener, ImageListener,
           
         //-------------------------------------------------------------------------------------------------------------------
         
+        case 84:                                                        // T => track the spot through time (Esc cancels)
+          if (activeWindow.equals(originalWindow) || seedRoi == null || editedImage.getRoi() != multiSliceRoi) {
+            IJ.showMessage("Please outline a spot in the edited image with Return first.");
+            return;
+          }
+          final boolean deleteSpot = modifier;                          // Opt (or Alt) => delete the spot
+          final int trackChannel = channel, trackFrame = frame;
+          final double trackMax = editedImage.getDisplayRangeMax();
+          runInBackground("Tracking", new Runnable() {
+            public void run() {
+              trackThroughTime(deleteSpot, trackChannel, trackFrame, trackMax);
+            }
+          });
+          break;
+          
+        //-------------------------------------------------------------------------------------------------------------------
+        
+        case 85:                                                        // U => undo, Opt+U => redo
+          final boolean redo = modifier;
+          runInBackground(redo ? "Redo" : "Undo", new Runnable() {
+            public void run() {
+              undoEdit(redo);
+            }
+          });
+          break;
+          
+        //-------------------------------------------------------------------------------------------------------------------
+        
         case (9):                                                       // Tab => swap windows
           if (activeWindow.equals(originalWindow)) {
             IJ.selectWindow(editedTitle);
@@ -251,41 +401,29 @@ public class Edit_Montage_Series implements PlugIn, KeyListener, ImageListener,
           
         //-------------------------------------------------------------------------------------------------------------------
         
-        case 37:                                                        // Left Arrow
-          if (modifier) {                                               // previous channel
-            if (channel > 1) {
-              activeImage.setPosition(channel - 1, 1, frame);
-              inactiveImage.setPosition(channel - 1, 1, frame);
-            }
-          }
-          else {                                                        // previous frame
-            if (frame > 1) {
-              activeImage.setPosition(channel, 1, frame - 1);
-              inactiveImage.setPosition(channel, 1, frame - 1);
-            }
-          }
+        case 37:                                                        // Left Arrow (held down => draw the latest frame)
+          if (modifier)                                                 // previous channel
+            navigate(-1, 0);
+          else                                                          // previous frame
+            navigate(0, -1);
           break;
           
         //-------------------------------------------------------------------------------------------------------------------
           
-        case 39:                                                        // Right Arrow
-          if (modifier) {                                               // next channel
-            if (channel < 4) {
-              activeImage.setPosition(channel + 1, 1, frame);
-              inactiveImage.setPosition(channel + 1, 1, frame);
-            }
-          }
-          else {                                                        // next frame
-            if (frame < frames) {
-              activeImage.setPosition(channel, 1, frame + 1);
-              inactiveImage.setPosition(channel, 1, frame + 1);
-            }
-          }
+        case 39:                                                        // Right Arrow (held down => draw the latest frame)
+          if (modifier)                                                 // next channel
+            navigate(1, 0);
+          else                                                          // next frame
+            navigate(0, 1);
           break;
           
         //-------------------------------------------------------------------------------------------------------------------
           
         case 38:                                                        // Up Arrow
+          if (channel == 4) {                                           // the gray display range is fixed
+            IJ.beep();
+            break;
+          }
           if (modifier) {                                               // jump to medium or top adjust array value
             if (channelAdjust[channel - 1] < 5)
               channelAdjust[channel - 1] = 5;
@@ -296,26 +434,16 @@ public class Edit_Montage_Series implements PlugIn, KeyListener, ImageListener,
             if (channelAdjust[channel - 1] < 10)
               channelAdjust[channel - 1] ++;
           }
-          cutoff = originalStats.pixelCount/adjust[channelAdjust[channel - 1]];
-          i = 256;
-          sum = 0;
-          while (!found) {
-            i--;
-            sum += histogram[i];
-            found = sum > cutoff;
-          }
-          max = i;
-          activeImage.setDisplayRange(0, max);
-          inactiveImage.setDisplayRange(0, max);
-          activeImage.updateAndDraw();
-          inactiveImage.updateAndDraw();
-          activeImage.changes = true;
-          inactiveImage.changes = true;
+          adjustDisplayRange(activeImage, inactiveImage, channel, frame);
           break;
           
         //-------------------------------------------------------------------------------------------------------------------
           
         case 40:                                                        // Down Arrow
+          if (channel == 4) {                                           // the gray display range is fixed
+            IJ.beep();
+            break;
+          }
           if (modifier) {                                               // jump to medium or bottom adjust array value
             if (channelAdjust[channel - 1] > 5)
               channelAdjust[channel - 1] = 5;
@@ -326,21 +454,7 @@ public class Edit_Montage_Series implements PlugIn, KeyListener, ImageListener,
             if (channelAdjust[channel - 1] > 0)
               channelAdjust[channel - 1] --;
           }
-          cutoff = originalStats.pixelCount/adjust[channelAdjust[channel - 1]];
-          i = 256;
-          sum = 0;
-          while (!found) {
-            i--;
-            sum += histogram[i];
-            found = sum > cutoff;
-          }
-          max = i;
-          activeImage.setDisplayRange(0, max);
-          inactiveImage.setDisplayRange(0, max);
-          activeImage.updateAndDraw();
-          inactiveImage.updateAndDraw();
-          activeImage.changes = true;
-          inactiveImage.changes = true;
+          adjustDisplayRange(activeImage, inactiveImage, channel, frame);
           break;
           
         //-------------------------------------------------------------------------------------------------------------------
@@ -406,66 +520,14 @@ public class Edit_Montage_Series implements PlugIn, KeyListener, ImageListener,
             }
           }
           
-          userRoi = refineRoi(userRoi);
-          
-          if (userRoi == null) {
-            IJ.showMessage("You're doing something weird.\n \nMake sure the correct channel is selected.");
-            IJ.selectWindow(editedTitle);
-            return;
-          }
-          
-          // Reset everything.
-          editedImage.killRoi();
-          for (int j = 0; j < slices; j++) {
-            autoRoi[j] = null;
-          }
-        
-          int x = userRoi.getBounds().x;
-          int y = userRoi.getBounds().y;
-          
-          int userRoiColumn = (x - GAP) / (width + GAP) + 1;
-          int userRoiRow = (y - GAP) / (height + GAP) + 1;
-          int userRoiSlice = (userRoiRow - 1) * columns + userRoiColumn - 1;    // slice index starts at 0
-
-          multiSliceRoi = new ShapeRoi(userRoi);                                // corresponds to autoRoi[userRoiSlice]
-          
-          // Automatically trace Roi's in the slices before the current slice.
-          Roi copyRoi = (PolygonRoi) userRoi.clone();                           // initialize copyRoi to match userRoi
-          if (userRoiSlice > 0) {
-            for (int roiSlice = userRoiSlice - 1; roiSlice >= 0; roiSlice--) {
-              x = copyRoi.getBounds().x;
-              y = copyRoi.getBounds().y;
-              copyRoi.setLocation(x + xOffset(roiSlice + 1, roiSlice), y + yOffset(roiSlice + 1, roiSlice));
-              copyRoi = refineRoi(copyRoi);
-              if (copyRoi == null) {
-                editedImage.killRoi();
-                break;
-              }
-              autoRoi[roiSlice] = new ShapeRoi(copyRoi);
+          final Roi spotRoi = userRoi;
+          final byte[] pixels = (byte[]) edited.getPixels();
+          final double channelMax = editedImage.getDisplayRangeMax();
+          runInBackground("Outlining", new Runnable() {
+            public void run() {
+              outlineSpot(spotRoi, pixels, channelMax);
             }
-          }
-          
-          // Automatically trace Roi's in the slices after the current slice.
-          copyRoi = (PolygonRoi) userRoi.clone();                               // re-initialize copyRoi
-          if (userRoiSlice < slices - 1) {
-            for (int roiSlice = userRoiSlice + 1; roiSlice <= slices - 1; roiSlice++) {
-              x = copyRoi.getBounds().x;
-              y = copyRoi.getBounds().y;
-              copyRoi.setLocation(x + xOffset(roiSlice - 1, roiSlice), y + yOffset(roiSlice - 1, roiSlice));
-              copyRoi = refineRoi(copyRoi);
-              if (copyRoi == null) {
-                editedImage.killRoi();
-                break;
-              }
-              autoRoi[roiSlice] = new ShapeRoi(copyRoi);
-            }
-          }
-          
-          for (int roiSlice = 0; roiSlice < slices; roiSlice++) {
-            if (autoRoi[roiSlice] != null)
-              multiSliceRoi.or(autoRoi[roiSlice]);
-          }
-          editedImage.setRoi(multiSliceRoi);
+          });
           break;
           
       }
@@ -526,12 +588,13 @@ public class Edit_Montage_Series implements PlugIn, KeyListener, ImageListener,
           inactiveImage.updateAndDraw();
           break;
           
-        case ('S'):                                                         // save changes
+        case ('S'):                                                         // save changes in the background
+                                                                            // (autosave: "montage.autosave.minutes" in IJ_Prefs.txt)
           if (activeWindow.equals(originalWindow)) {
             IJ.beep();
           }
           else if (activeWindow.equals(editedWindow)) {
-            IJ.run("Save");
+            saveEdited();
           }
           
           break;
@@ -541,7 +604,11 @@ public class Edit_Montage_Series implements PlugIn, KeyListener, ImageListener,
           break;
           
         case ('Z'):                                                         // copy original to edited
+          int plane = editedImage.getCurrentSlice();
+          byte[] before = ((byte[]) edited.getPixels()).clone();
+          planeWillChange(plane);
           edited.insert(original, 0, 0);
+          recordEdit("Copy Original", plane, before);
           editedImage.updateAndDraw();
           editedImage.changes = true;
           break;
@@ -580,6 +647,10 @@ public class Edit_Montage_Series implements PlugIn, KeyListener, ImageListener,
           
           break;
           
+        case ('L'):                                                         // show the command timings
+          latency.getResults().show("Edit Montage Series Timings");
+          break;
+          
         case ('E'):                                                         // erase this channel going forward or back
           if (activeWindow.equals(originalWindow) || channel == 4) {
             IJ.beep();
@@ -598,35 +669,25 @@ public class Edit_Montage_Series implements PlugIn, KeyListener, ImageListener,
             GenericDialog gd = new GenericDialog("Choose Direction");
             String[] directions = {"forward to the end", "back to the beginning"};
             gd.addChoice("Erase the " + color + " channel from this time point", directions, directions[0]);
+            gd.addNumericField("First Z slice:", 1, 0);
+            gd.addNumericField("Last Z slice:", slices, 0);
             gd.showDialog();
             if (gd.wasCanceled()) break;
             
             boolean forward = (gd.getNextChoice().equals(directions[0]));
-            edited.setColor(Color.black);
-            Roi roi;
-            
-            if (forward) {
-              for (int t = frame; t <= frames; t++) {
-                editedImage.setPositionWithoutUpdate(channel, 1, t);
-                IJ.run("Select All");
-                roi = editedImage.getRoi();
-                edited.fill(roi);
-                editedImage.killRoi();
-              }
+            int firstSlice = Math.max((int) gd.getNextNumber(), 1);
+            int lastSlice = Math.min((int) gd.getNextNumber(), slices);
+            if (firstSlice > lastSlice) {
+              IJ.beep();
+              break;
             }
-            else {
-              for (int t = frame; t >= 1; t--) {
-                editedImage.setPositionWithoutUpdate(channel, 1, t);
-                IJ.run("Select All");
-                roi = editedImage.getRoi();
-                edited.fill(roi);
-                editedImage.killRoi();
+            final int eraseChannel = channel, firstFrame = forward ? frame : 1, lastFrame = forward ? frames : frame;
+            final int firstZ = firstSlice, lastZ = lastSlice;
+            runInBackground("Erasing", new Runnable() {
+              public void run() {
+                eraseFrames(eraseChannel, firstFrame, lastFrame, firstZ, lastZ);
               }
-            }
-            
-            editedImage.setPosition(channel, 1, frame);
-            editedImage.updateAndDraw();
-            editedImage.changes = true;
+            });
           }
           break;
           
@@ -641,7 +702,19 @@ public class Edit_Montage_Series implements PlugIn, KeyListener, ImageListener,
 
     //========================================================================================================================
     
+    /* Stops the background threads and deletes the undo file when either montage is closed. The journal is closed on the
+     * worker thread, after any command that is still using it. */
     public void imageClosed(ImagePlus imp) {
+      if (imp != originalImage && imp != editedImage) return;
+      ImagePlus.removeImageListener(this);
+      if (autosaveTimer != null) autosaveTimer.stop();
+      if (prefetcher != null) prefetcher.shutdown();
+      worker.execute(new Runnable() {
+        public void run() {
+          journal.close();
+        }
+      });
+      worker.shutdown();
       originalWindow.removeKeyListener(this);
       originalCanvas.removeKeyListener(this);
       editedWindow.removeKeyListener(this);
@@ -656,6 +729,7 @@ public class Edit_Montage_Series implements PlugIn, KeyListener, ImageListener,
     
     /* Updates both windows if one of the scroll bars is dragged. */
     public void adjustmentValueChanged(AdjustmentEvent e) {
+      long start = System.nanoTime(), drawn = drawNanos();
       ImageWindow activeWindow = WindowManager.getCurrentWindow();
       ImagePlus activeImage = activeWindow.getImagePlus();
       int channel = activeImage.getChannel();
@@ -668,10 +742,250 @@ public class Edit_Montage_Series implements PlugIn, KeyListener, ImageListener,
       else if (activeWindow.equals(editedWindow)) {
         originalImage.setPosition(channel, 1, frame);
       }
+      if (prefetcher != null) prefetcher.moveTo(frame);
+      recordLatency("Scroll bar", start, drawn);
     }
 
     //========================================================================================================================
     
+    /* Replaces the virtual stacks of the two montages with caching stacks that share a memory budget of "montage.cache.mb"
+     * megabytes, and starts loading "montage.prefetch.frames" frames on each side of the current frame. The caching stacks
+     * keep the number of planes of the stacks they replace. */
+    private void cacheVirtualStacks() {
+      int range = (int) Prefs.get("montage.prefetch.frames", 8);
+      long cacheBytes = (long) Prefs.get("montage.cache.mb", 1024) * 1024 * 1024;
+      ArrayList<CachingVirtualStack> cachedStacks = new ArrayList<CachingVirtualStack>();
+      ImagePlus[] images = {originalImage, editedImage};
+      for (ImagePlus image : images) {
+        ImageStack stack = image.getStack();
+        if (!stack.isVirtual() || stack instanceof CachingVirtualStack) continue;
+        int minPlanes = image.getNChannels() * (2 * range + 2);            // nearby frames, and the one being left
+        CachingVirtualStack cachedStack = new CachingVirtualStack(stack, cacheBytes / images.length, minPlanes);
+        image.setStack(cachedStack, image.getNChannels(), 1, image.getNFrames());
+        cachedStacks.add(cachedStack);
+      }
+      if (cachedStacks.isEmpty()) return;
+      
+      original = originalImage.getProcessor();
+      prefetcher = new FramePrefetcher(cachedStacks.toArray(new CachingVirtualStack[0]), originalImage.getNChannels(), 
+                                       frames, range);
+      prefetcher.moveTo(originalImage.getFrame());
+    }
+    
+    //========================================================================================================================
+    
+    /* Shows a composite montage again as a MontageCompositeImage, in a new window at the same place, and closes its old
+     * window without flushing the stack that the two images share. */
+    private ImagePlus showWithMontageRenderer(ImagePlus image) {
+      if (!image.isComposite() || image instanceof MontageCompositeImage) return image;
+      MontageCompositeImage montage = new MontageCompositeImage(image);
+      montage.setProperty("Info", image.getProperty("Info"));
+      if (image.getOriginalFileInfo() != null) montage.setFileInfo(image.getOriginalFileInfo());
+      montage.setCalibration(image.getCalibration());
+      boolean[] active = ((CompositeImage) image).getActiveChannels();
+      System.arraycopy(active, 0, montage.getActiveChannels(), 0, active.length);
+      montage.setPosition(image.getChannel(), image.getSlice(), image.getFrame());
+      montage.changes = image.changes;
+      
+      Point location = image.getWindow().getLocation();
+      image.setIgnoreFlush(true);
+      image.changes = false;
+      image.close();
+      montage.show();
+      montage.getWindow().setLocation(location);
+      return montage;
+    }
+    
+    //========================================================================================================================
+    
+    /* Records the time of a command from "start", with the time that the two images spent redrawing since their total 
+     * drawing time was "drawn" counted separately. */
+    private void recordLatency(String command, long start, long drawn) {
+      long redraw = drawNanos() - drawn;
+      latency.record(command, System.nanoTime() - start - redraw, redraw);
+    }
+    
+    /* Returns the total time that the two montages have spent updating their images. */
+    private long drawNanos() {
+      long nanos = 0;
+      if (originalImage instanceof MontageCompositeImage) nanos += ((MontageCompositeImage) originalImage).getDrawNanos();
+      if (editedImage instanceof MontageCompositeImage) nanos += ((MontageCompositeImage) editedImage).getDrawNanos();
+      return nanos;
+    }
+    
+    //========================================================================================================================
+    
+    /* Moves both windows by dChannel channels and dFrame frames. The move is drawn once the key presses that are already 
+     * queued have been handled, so that holding down an arrow key draws only the latest position. */
+    private void navigate(int dChannel, int dFrame) {
+      if (!navigationPending) {
+        targetChannel = editedImage.getChannel();
+        targetFrame = editedImage.getFrame();
+      }
+      targetChannel = Math.max(1, Math.min(targetChannel + dChannel, 4));
+      targetFrame = Math.max(1, Math.min(targetFrame + dFrame, frames));
+      if (navigationPending) return;
+      navigationPending = true;
+      EventQueue.invokeLater(new Runnable() {
+        public void run() {
+          if (!navigationPending) return;                               // drawn by another key
+          long start = System.nanoTime(), drawn = drawNanos();
+          showTargetPosition();
+          recordLatency("Arrow", start, drawn);
+        }
+      });
+    }
+    
+    /* Draws the position that the arrow keys have moved to, if it has not been drawn yet. */
+    private void showTargetPosition() {
+      if (!navigationPending) return;
+      navigationPending = false;
+      originalImage.setPosition(targetChannel, 1, targetFrame);
+      editedImage.setPosition(targetChannel, 1, targetFrame);
+      if (prefetcher != null) prefetcher.moveTo(targetFrame);
+    }
+    
+    /* Runs a command on the worker thread, so that the windows keep responding. Other keys are refused until it is done. */
+    private void runInBackground(final String name, final Runnable command) {
+      final String timed = timedCommand;
+      dispatched = true;
+      busy.set(true);
+      IJ.resetEscape();
+      IJ.showStatus(name + "...");
+      worker.execute(new Runnable() {
+        public void run() {
+          long start = System.nanoTime(), drawn = drawNanos();
+          try {
+            command.run();
+            if (timed != null) recordLatency(timed, start, drawn);
+          }
+          catch (Throwable t) {
+            IJ.handleException(t);
+          }
+          finally {
+            IJ.showProgress(1.0);
+            busy.set(false);
+          }
+        }
+      });
+    }
+    
+    //========================================================================================================================
+    
+    /* Records an edit of one plane of the edited montage for undo, given a copy of the plane before the edit. */
+    private void recordEdit(String name, int plane, byte[] before) {
+      journal.beginEdit(name);
+      journal.recordPlane(plane, before, (byte[]) editedImage.getStack().getPixels(plane));
+      endEdit();
+    }
+    
+    private void endEdit() {
+      try {
+        journal.endEdit();
+      }
+      catch (IOException e) {
+        IJ.log("The undo data could not be written to a temporary file: " + e.getMessage());
+      }
+    }
+    
+    /* Undoes the most recent edit of the edited montage, or redoes the most recently undone edit. */
+    private void undoEdit(boolean redo) {
+      for (int n : journal.nextPlanes(redo)) {
+        planeWillChange(n);
+      }
+      String name;
+      try {
+        name = redo ? journal.redo(editedImage.getStack()) : journal.undo(editedImage.getStack());
+      }
+      catch (IOException e) {
+        IJ.error("Edit Montage Series", "The edit could not be " + (redo ? "redone" : "undone") + ":\n" + e.getMessage());
+        return;
+      }
+      if (name == null) {
+        IJ.beep();
+        return;
+      }
+      editedImage.updateAndDraw();
+      editedImage.changes = true;
+      IJ.showStatus((redo ? "Redo " : "Undo ") + name);
+    }
+    
+    //========================================================================================================================
+    
+    /* Must be called before a plane of the edited montage is changed, so that a save in progress writes the plane as it 
+     * was when the save started, and a cached plane is kept in memory until it is saved. */
+    private void planeWillChange(int n) {
+      saver.planeWillChange(n);                                           // before pinning, so a save does not unpin it
+      autosaver.planeWillChange(n);
+      if (editedImage.getStack() instanceof CachingVirtualStack) {
+        CachingVirtualStack stack = (CachingVirtualStack) editedImage.getStack();
+        if (n == editedImage.getCurrentSlice()) {                         // the plane on display may have been dropped
+          stack.setPixels(editedImage.getProcessor().getPixels(), n);
+        }
+        stack.pin(n);
+      }
+      editCount.incrementAndGet();
+    }
+    
+    /* Saves the edited montage in the background, to the file it was opened from, or to a file chosen by the user if it 
+     * is new. Editing can continue while it is written. */
+    private void saveEdited() {
+      if (saver.isSaving()) {
+        IJ.beep();
+        IJ.showStatus(editedTitle + " is still being saved.");
+        return;
+      }
+      FileInfo fileInfo = editedImage.getOriginalFileInfo();
+      String directory = (fileInfo != null) ? fileInfo.directory : null;
+      if (directory == null || directory.length() == 0) {
+        SaveDialog sd = new SaveDialog("Save Edited Montage", editedTitle, ".tif");
+        if (sd.getFileName() == null) return;
+        directory = sd.getDirectory();
+        editedTitle = sd.getFileName();
+        editedImage.setTitle(editedTitle);
+        fileInfo = editedImage.getFileInfo();                             // Later saves go to the same directory.
+        fileInfo.directory = directory;
+        fileInfo.fileName = editedTitle;
+        editedImage.setFileInfo(fileInfo);
+      }
+      IJ.showStatus("Saving " + editedTitle + "...");
+      saver.save(new File(directory, editedTitle), true);
+    }
+    
+    /* Saves the edited montage in the background to "<title> autosave.tif", next to the original montage, if it has 
+     * been edited since the last autosave. */
+    private void autosave() {
+      if (editedImage.getWindow() == null) {
+        autosaveTimer.stop();
+        return;
+      }
+      int edits = editCount.get();
+      if (edits == autosavedEdits || autosaver.isSaving()) return;
+      FileInfo fileInfo = originalImage.getOriginalFileInfo();
+      if (fileInfo == null || fileInfo.directory == null) return;
+      String name = editedTitle.substring(0, editedTitle.length() - 4) + " autosave.tif";
+      if (autosaver.save(new File(fileInfo.directory, name), false)) {
+        autosavedEdits = edits;
+      }
+    }
+    
+    //========================================================================================================================
+    
+    /* Sets the display maximum of the channel in both windows so that a fraction 1/adjust[] of the pixels in the current 
+     * frame of the original channel are brighter, using the cumulative histograms. */
+    private void adjustDisplayRange(ImagePlus activeImage, ImagePlus inactiveImage, int channel, int frame) {
+      int cutoff = originalHistograms.getPixelCount()/adjust[channelAdjust[channel - 1]];
+      int max = originalHistograms.displayMax(channel, frame, cutoff);
+      activeImage.setDisplayRange(0, max);
+      inactiveImage.setDisplayRange(0, max);
+      activeImage.updateAndDraw();
+      inactiveImage.updateAndDraw();
+      activeImage.changes = true;
+      inactiveImage.changes = true;
+    }
+    
+    //========================================================================================================================
+    
     /* Extracts an integer parameter from a parameter string in the Info property. */
     private int extractParameter(String parameterString) {
       int start = parameterString.indexOf(":") + 2;
@@ -680,51 +994,187 @@ public class Edit_Montage_Series implements PlugIn, KeyListener, ImageListener,
     
     //========================================================================================================================
     
-    /* Traces a wand-type ROI around the spot that is within the specified ROI, if such a spot exists. */
-    private PolygonRoi refineRoi(Roi roi) {
+    /* Traces a wand-type ROI around the spot that is within the ROI drawn by the user, in the pixels of the current plane,
+     * and then traces the spot through the Z slices. The spot is traced without setting the ROI on the edited image. */
+    private void outlineSpot(Roi userRoi, byte[] pixels, double channelMax) {
+      PolygonRoi spot = tracer.trace(pixels, userRoi, channelMax);
+      if (spot == null) {
+        IJ.showMessage("You're doing something weird.\n \nMake sure the correct channel is selected.");
+        IJ.selectWindow(editedTitle);
+        return;
+      }
+      
+      // Reset everything, and trace the spot through the Z slices.
       editedImage.killRoi();
-      editedImage.setRoi(roi);
-      
-      ImageStatistics stats = editedImage.getStatistics();
-      int max = (int) stats.max;
-      double channelMax = editedImage.getDisplayRangeMax();
-      
-      // Return null if there is no sufficiently bright spot within the Roi.
-      if (channelMax == 0 || max < 0.25 * channelMax) {
-        return null;
-      }
-      
-      // Find a pixel that lies within the Roi and has the maximum value.
-      Rectangle box = roi.getBounds();
-      int x = 0, y = 0, xMax = 0, yMax = 0; 
-      for (y = box.y; y < box.y + box.height; y++) {
-        for (x = box.x; x < box.x + box.width; x++) {
-          int value = edited.getPixel(x, y);
-          if (roi.contains(x, y) && value == max) {
-            xMax = x;
-            yMax = y;
-            break;
-          }
+      seedRoi = spot;
+      multiSliceRoi = traceSlices(seedRoi, pixels, channelMax, tracer, autoRoi);
+      editedImage.setRoi(multiSliceRoi);
+    }
+    
+    //========================================================================================================================
+    
+    /* Traces a spot through the Z slices of one montage plane, starting from the spot traced in one slice, and returns the 
+     * union of the traced spots. In each direction, tracing stops at the first slice without a spot. The spots traced in
+     * the other slices are put in sliceRois, which is null for the other slices. */
+    private ShapeRoi traceSlices(PolygonRoi seed, byte[] pixels, double channelMax, SpotTracer tracer, ShapeRoi[] sliceRois) {
+      Arrays.fill(sliceRois, null);
+      Rectangle bounds = seed.getBounds();
+      int seedColumn = (bounds.x - GAP) / (width + GAP) + 1;
+      int seedRow = (bounds.y - GAP) / (height + GAP) + 1;
+      int seedSlice = (seedRow - 1) * columns + seedColumn - 1;             // slice index starts at 0
+      
+      for (int step = -1; step <= 1; step += 2) {                           // slices before, then after the seed slice
+        Roi copyRoi = (PolygonRoi) seed.clone();
+        for (int roiSlice = seedSlice + step; roiSlice >= 0 && roiSlice < slices; roiSlice += step) {
+          bounds = copyRoi.getBounds();
+          copyRoi.setLocation(bounds.x + xOffset(roiSlice - step, roiSlice), bounds.y + yOffset(roiSlice - step, roiSlice));
+          copyRoi = tracer.trace(pixels, copyRoi, channelMax);
+          if (copyRoi == null) break;
+          sliceRois[roiSlice] = new ShapeRoi(copyRoi);
         }
       }
       
-      // Choose the tolerance for the wand. This choice is delicate, and crucial. The tolerance will be a 
-      // fraction of the "max" value for the brightest spot in the Roi, where this fraction is allowed to range
-      // from 0.25 for dim spots to 0.98 for bright spots. Empirically, if "max" is equal to the display
-      // maximum value "channelMax", a fraction value of 0.5 is appropriate. The fraction increases by
-      // "fractionIncrement" for every 2-fold increase in "max" relative to "channelMax". This algorithm works,
-      // but the resulting Roi is too tight around the spot, so a final adjustment corrects the value of
-      // "channelMax" by the factor of "wandAdjuster".
-      channelMax = channelMax * wandAdjuster;
-      double fraction = 0.5 + fractionIncrement * Math.log(max / channelMax) / Math.log(2.0);
-      fraction = Math.max(fraction, 0.25);
-      fraction = Math.min(fraction, 0.98);
+      ShapeRoi union = new ShapeRoi(seed);
+      for (int roiSlice = 0; roiSlice < slices; roiSlice++) {
+        if (sliceRois[roiSlice] != null)
+          union.or(sliceRois[roiSlice]);
+      }
+      return union;
+    }
+    
+    /* Tracks the outlined spot forward and back through time, and isolates it (or deletes it) in every frame as Delete 
+     * does. In each frame, the seed spot of the previous frame is moved by its last centroid displacement, enlarged by 
+     * SEARCH_MARGIN, and traced again. The new spot is accepted if at least MIN_OVERLAP of it lies inside the moved Roi, 
+     * and it is then traced through the Z slices. Tracking stops at the first frame where the spot is lost. The two 
+     * directions are tracked in parallel, and Esc cancels tracking. */
+    private void trackThroughTime(final boolean deleteSpot, final int channel, final int frame, final double channelMax) {
+      final ImageStack stack = editedImage.getStack();
+      final int plane = editedImage.getStackIndex(channel, 1, frame);
+      final int[] lastFrames = {frame, frame};                              // Last frame tracked back and forward.
+      final AtomicInteger framesDone = new AtomicInteger(0);
+      
+      // Trace the seed spot again for its centroid, before the current frame is edited.
+      if (tracer.trace((byte[]) stack.getPixels(plane), seedRoi, channelMax) == null) {
+        IJ.beep();
+        return;
+      }
+      final double seedX = tracer.getXCentroid(), seedY = tracer.getYCentroid();
+      
+      journal.beginEdit(deleteSpot ? "Track and Delete" : "Track and Isolate");
+      editPlane(stack, plane, multiSliceRoi, deleteSpot);
+      
+      Thread[] threads = new Thread[2];
+      for (int i = 0; i < 2; i++) {
+        final int direction = (i == 0) ? -1 : 1;
+        threads[i] = new Thread("Tracker-" + i) {
+          public void run() {
+            SpotTracer frameTracer = new SpotTracer(editedImage.getWidth(), editedImage.getHeight(), wandAdjuster, 
+                                                    fractionIncrement);
+            ShapeRoi[] sliceRois = new ShapeRoi[slices];
+            PolygonRoi spot = seedRoi;
+            double xCentroid = seedX, yCentroid = seedY;
+            double dx = 0, dy = 0;                                          // Last centroid displacement.
+            for (int t = frame + direction; t >= 1 && t <= frames; t += direction) {
+              if (IJ.escapePressed()) return;
+              int n = editedImage.getStackIndex(channel, 1, t);
+              byte[] pixels = (byte[]) stack.getPixels(n);
+              
+              Roi predicted = (Roi) spot.clone();
+              Rectangle bounds = predicted.getBounds();
+              predicted.setLocation(bounds.x + (int) Math.round(dx), bounds.y + (int) Math.round(dy));
+              PolygonRoi next = frameTracer.trace(pixels, RoiEnlarger.enlarge(predicted, SEARCH_MARGIN), channelMax);
+              if (next == null || frameTracer.countInside(predicted) < MIN_OVERLAP * frameTracer.getArea()) return;
+              
+              dx = frameTracer.getXCentroid() - xCentroid;
+              dy = frameTracer.getYCentroid() - yCentroid;
+              xCentroid = frameTracer.getXCentroid();
+              yCentroid = frameTracer.getYCentroid();
+              spot = next;
+              
+              editPlane(stack, n, traceSlices(spot, pixels, channelMax, frameTracer, sliceRois), deleteSpot);
+              lastFrames[direction < 0 ? 0 : 1] = t;
+              IJ.showProgress(framesDone.incrementAndGet(), frames - 1);
+            }
+          }
+        };
+      }
+      ThreadUtil.startAndJoin(threads);
+      endEdit();
       
-      // Use a wand to outline the spot, starting at the pixel with the maximum value.
-      Wand wand = new Wand(edited);
-      wand.autoOutline(xMax, yMax, fraction * max, Wand.EIGHT_CONNECTED);
+      IJ.showProgress(1.0);
+      editedImage.killRoi();
+      editedImage.updateAndDraw();
+      editedImage.changes = true;
+      IJ.showStatus((IJ.escapePressed() ? "Tracking canceled. " : "") + "Spot tracked in frames " + lastFrames[0] + 
+                    " to " + lastFrames[1] + ".");
+    }
+    
+    /* Isolates (or deletes) a Roi in one plane of the edited montage, and records the change for undo. */
+    private void editPlane(ImageStack stack, int n, Roi roi, boolean deleteRoi) {
+      planeWillChange(n);
+      byte[] pixels = (byte[]) stack.getPixels(n);
+      byte[] before = pixels.clone();
+      ByteProcessor ip = new ByteProcessor(editedImage.getWidth(), editedImage.getHeight(), pixels);
+      ip.setColor(Color.black);
+      if (deleteRoi)
+        ip.fill(roi);
+      else
+        ip.fillOutside(roi);
+      stack.setPixels(pixels, n);
+      journal.recordPlane(n, before, pixels);
+    }
+    
+    //========================================================================================================================
+    
+    /* Erases one channel of the edited montage in a range of frames, either whole planes or only the tiles of a range of Z 
+     * slices (1-based), as one undoable edit. The planes are zeroed directly in the stack by worker threads, and the image
+     * is redrawn once. */
+    private void eraseFrames(final int channel, final int firstFrame, int lastFrame, int firstSlice, int lastSlice) {
+      final ImageStack stack = editedImage.getStack();
+      final int imageWidth = editedImage.getWidth();
+      final boolean wholePlane = (firstSlice == 1 && lastSlice == slices);
+      final Rectangle[] tiles = new Rectangle[lastSlice - firstSlice + 1];
+      for (int z = firstSlice; z <= lastSlice; z++) {
+        int x = GAP + ((z - 1) % columns) * (width + GAP);
+        int y = GAP + ((z - 1) / columns) * (height + GAP);
+        tiles[z - firstSlice] = new Rectangle(x, y, width, height);
+      }
+      
+      final int count = lastFrame - firstFrame + 1;
+      final AtomicInteger nextFrame = new AtomicInteger(0), framesDone = new AtomicInteger(0);
+      journal.beginEdit("Erase");
+      Thread[] threads = ThreadUtil.createThreadArray(Math.min(Prefs.getThreads(), count));
+      for (int i = 0; i < threads.length; i++) {
+        threads[i] = new Thread("Erase-" + i) {
+          public void run() {
+            for (int t = nextFrame.getAndIncrement(); t < count; t = nextFrame.getAndIncrement()) {
+              int n = editedImage.getStackIndex(channel, 1, firstFrame + t);
+              planeWillChange(n);
+              byte[] pixels = (byte[]) stack.getPixels(n);
+              byte[] before = pixels.clone();
+              if (wholePlane) {
+                Arrays.fill(pixels, (byte) 0);
+              }
+              else {
+                for (Rectangle tile : tiles) {
+                  for (int y = tile.y; y < tile.y + tile.height; y++) {
+                    int offset = y * imageWidth + tile.x;
+                    Arrays.fill(pixels, offset, offset + tile.width, (byte) 0);
+                  }
+                }
+              }
+              stack.setPixels(pixels, n);
+              journal.recordPlane(n, before, pixels);
+              IJ.showProgress(framesDone.incrementAndGet(), count);
+            }
+          }
+        };
+      }
+      ThreadUtil.startAndJoin(threads);
+      endEdit();
       
-      return new PolygonRoi(wand.xpoints, wand.ypoints, wand.npoints, Roi.FREEROI);
+      editedImage.updateAndDraw();
+      editedImage.changes = true;
     }
     
     //========================================================================================================================
@@ -0,0 +1,75 @@
+package IJ_Plugins;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* Loads the frames around the current frame of one or more cached hyperstacks on a background thread, so that moving to a
+ * neighboring frame does not wait for the disk. The frames ahead in the direction of the last move are loaded first, and
+ * then the frames behind. A move cancels the loading for the previous frame. The stacks have one slice, and all the
+ * channels of a frame are loaded. */
+public class FramePrefetcher {
+
+	private CachingVirtualStack[] stacks;
+	private int channels, frames, range;                                     // range: frames loaded in each direction.
+	private int lastFrame, direction = 1;
+	private AtomicInteger generation = new AtomicInteger(0);                 // Increased by every move.
+	private ExecutorService loader;
+
+	//------------------------------------------------------------------------------------------------------------------------
+
+    public FramePrefetcher(CachingVirtualStack[] stacks, int channels, int frames, int range) {
+      this.stacks = stacks;
+      this.channels = channels;
+      this.frames = frames;
+      this.range = range;
+      loader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "FramePrefetcher");
+          thread.setDaemon(true);
+          thread.setPriority(Thread.MIN_PRIORITY);
+          return thread;
+        }
+      });
+    }
+
+    //========================================================================================================================
+
+    /* Starts loading the frames around "frame", which has just been shown. */
+    public synchronized void moveTo(final int frame) {
+      if (frame != lastFrame) {
+        direction = (frame > lastFrame) ? 1 : -1;
+        lastFrame = frame;
+      }
+      final int forward = direction;
+      final int current = generation.incrementAndGet();
+      loader.execute(new Runnable() {
+        public void run() {
+          for (int step = -1; step < 2 * range; step++) {                  // current frame, then ahead, then behind
+            if (generation.get() != current) return;
+            int t;
+            if (step < 0)
+              t = frame;
+            else if (step < range)
+              t = frame + forward * (step + 1);
+            else
+              t = frame - forward * (step - range + 1);
+            if (t < 1 || t > frames) continue;
+            for (int c = 1; c <= channels; c++) {
+              for (CachingVirtualStack stack : stacks) {
+                stack.prefetch((t - 1) * channels + c);
+              }
+            }
+          }
+        }
+      });
+    }
+
+    /* Stops loading frames. */
+    public void shutdown() {
+      generation.incrementAndGet();
+      loader.shutdown();
+    }
+
+}
@@ -0,0 +1,308 @@
+package IJ_Plugins;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.*;
+import ij.util.ThreadUtil;
+
+/* Projects an 8-bit 4D hyperstack along Z in a single pass. Each (channel, frame) Z-stack is summed from the 8-bit planes
+ * into int accumulators, and the average is written out as a 16-bit value scaled by 256. The maximum, sum and standard
+ * deviation are accumulated in the same pass when requested, and the median is found with a per-pixel 256-bin counting
+ * sort. The frames are divided among worker threads, so that apart from one set of accumulators per thread, the only
+ * allocation is the projections themselves. The planes are either taken from an open hyperstack or streamed from the TIFF
+ * file, in which case each thread holds only the Z-stack it is working on. While the 16-bit projections are written,
+ * a full 16-bit histogram is kept for each channel, so that display ranges can be set without another pass. */
+public class HyperstackProjector {
+
+	private ImageStack stack;
+	private TiffPlaneReader reader;                                          // Source of the planes when streaming from a file.
+	private volatile String readError;                                       // First error while streaming, if any.
+	private long[][][] histograms;                                           // 16-bit histograms, indexed [statistic][channel][value].
+	private int width, height, channels, slices, frames;                    // Hyperstack parameters.
+
+	public static final int SCALE = 256;                                     // Scales 8-bit values to the 16-bit range.
+
+	// Statistics that can be projected. The projections are returned in this order.
+	public static final int AVERAGE = 1, MAX = 2, SUM = 4, SD = 8, MEDIAN = 16;
+	public static final int[] STATISTICS = {AVERAGE, MAX, SUM, SD, MEDIAN};
+	public static final String[] PREFIXES = {"AVG_", "MAX_", "SUM_", "STD_", "MED_"};
+
+	//------------------------------------------------------------------------------------------------------------------------
+
+    public HyperstackProjector(ImagePlus hyperStack) {
+      stack = hyperStack.getStack();
+      width = hyperStack.getWidth();
+      height = hyperStack.getHeight();
+      channels = hyperStack.getNChannels();
+      slices = hyperStack.getNSlices();
+      frames = hyperStack.getNFrames();
+    }
+
+    public HyperstackProjector(TiffPlaneReader reader) {
+      this.reader = reader;
+      width = reader.getWidth();
+      height = reader.getHeight();
+      channels = reader.getNChannels();
+      slices = reader.getNSlices();
+      frames = reader.getNFrames();
+    }
+
+    //========================================================================================================================
+
+    /* Returns one stack for each requested statistic, in the order of STATISTICS, with one projection for each channel and
+     * frame in hyperstack order. The average, maximum and median are 16-bit, and the sum and standard deviation are
+     * 32-bit. All values are scaled by SCALE. Returns null if a streamed plane could not be read. */
+    public ImageStack[] project(final int statistics) {
+      final Object[][] projections = new Object[STATISTICS.length][channels * frames];
+      final AtomicInteger nextFrame = new AtomicInteger(1);
+      final AtomicInteger framesDone = new AtomicInteger(0);
+
+      Thread[] threads = ThreadUtil.createThreadArray(Math.min(Prefs.getThreads(), frames));
+      for (int i = 0; i < threads.length; i++) {
+        threads[i] = new Thread("Projector-" + i) {
+          public void run() {
+            Accumulators acc = new Accumulators(statistics);
+            for (int t = nextFrame.getAndIncrement(); t <= frames && readError == null; t = nextFrame.getAndIncrement()) {
+              for (int ch = 1; ch <= channels; ch++) {
+                Object[] planes;
+                try {
+                  planes = projectZStack(ch, t, acc);
+                }
+                catch (IOException e) {
+                  readError = e.getMessage();
+                  return;
+                }
+                for (int s = 0; s < STATISTICS.length; s++) {
+                  projections[s][(t - 1) * channels + ch - 1] = planes[s];
+                }
+              }
+              IJ.showProgress(framesDone.incrementAndGet(), frames);
+            }
+            addHistograms(acc.histograms);
+          }
+        };
+      }
+      histograms = new long[STATISTICS.length][][];
+      ThreadUtil.startAndJoin(threads);
+      if (readError != null) {
+        IJ.error("Projection", "Could not read " + reader.getName() + ":\n" + readError);
+        return null;
+      }
+
+      int requested = Integer.bitCount(statistics & (AVERAGE | MAX | SUM | SD | MEDIAN));
+      ImageStack[] stacks = new ImageStack[requested];
+      int n = 0;
+      for (int s = 0; s < STATISTICS.length; s++) {
+        if ((statistics & STATISTICS[s]) != 0) {
+          stacks[n] = new ImageStack(width, height);
+          for (int i = 0; i < projections[s].length; i++) {
+            stacks[n].addSlice(null, projections[s][i]);
+          }
+          n++;
+        }
+      }
+      return stacks;
+    }
+
+    //========================================================================================================================
+
+    /* Projects the Z-stack for channel ch and time t. Returns the projection pixels indexed like STATISTICS, with null
+     * entries for statistics that were not requested. */
+    private Object[] projectZStack(int ch, int t, Accumulators acc) throws IOException {
+      int pixelCount = width * height;
+      int firstSlice = channels * slices * (t - 1) + ch;                     // First slice in a Z-stack for channel ch and time t.
+      int[] sum = acc.sum, sumSquares = acc.sumSquares, max = acc.max;
+
+      byte[][] planes = acc.planes;
+      for (int z = 1; z <= slices; z++) {
+        if (reader != null) {
+          reader.readPlane(firstSlice + channels * (z - 1), planes[z - 1]);
+        }
+        else {
+          planes[z - 1] = (byte[]) stack.getPixels(firstSlice + channels * (z - 1));
+        }
+      }
+
+      // Accumulate the sum, sum of squares and maximum in one pass over each plane.
+      byte[] pixels = planes[0];
+      for (int i = 0; i < pixelCount; i++) {
+        int value = pixels[i] & 0xFF;
+        sum[i] = value;
+        if (sumSquares != null) sumSquares[i] = value * value;
+        if (max != null) max[i] = value;
+      }
+      for (int z = 1; z < slices; z++) {
+        pixels = planes[z];
+        if (sumSquares == null && max == null) {
+          for (int i = 0; i < pixelCount; i++) {
+            sum[i] += pixels[i] & 0xFF;
+          }
+        }
+        else {
+          for (int i = 0; i < pixelCount; i++) {
+            int value = pixels[i] & 0xFF;
+            sum[i] += value;
+            if (sumSquares != null) sumSquares[i] += value * value;
+            if (max != null && value > max[i]) max[i] = value;
+          }
+        }
+      }
+
+      Object[] result = new Object[STATISTICS.length];
+      int half = slices / 2;
+
+      // The scaled average, maximum and median never exceed 255 * SCALE, so they fit in an unsigned short.
+      if ((acc.statistics & AVERAGE) != 0) {
+        short[] average = new short[pixelCount];
+        int[] histogram = acc.histograms[0][ch - 1];
+        for (int i = 0; i < pixelCount; i++) {
+          int value = (sum[i] * SCALE + half) / slices;
+          average[i] = (short) value;
+          histogram[value]++;
+        }
+        result[0] = average;
+      }
+      if (max != null) {
+        short[] maximum = new short[pixelCount];
+        int[] histogram = acc.histograms[1][ch - 1];
+        for (int i = 0; i < pixelCount; i++) {
+          int value = max[i] * SCALE;
+          maximum[i] = (short) value;
+          histogram[value]++;
+        }
+        result[1] = maximum;
+      }
+      if ((acc.statistics & SUM) != 0) {
+        float[] total = new float[pixelCount];
+        for (int i = 0; i < pixelCount; i++) {
+          total[i] = (float) sum[i] * SCALE;
+        }
+        result[2] = total;
+      }
+      if (sumSquares != null) {
+        // Sample standard deviation, as calculated by ImageJ's Z Project.
+        float[] sd = new float[pixelCount];
+        double n = slices;
+        for (int i = 0; i < pixelCount; i++) {
+          double s = sum[i];
+          double variance = (n * sumSquares[i] - s * s) / n / (n - 1.0);
+          sd[i] = variance > 0.0 ? (float) (Math.sqrt(variance) * SCALE) : 0f;
+        }
+        result[3] = sd;
+      }
+      if ((acc.statistics & MEDIAN) != 0) {
+        result[4] = median(planes, acc.histogram, acc.histograms[4][ch - 1], pixelCount);
+      }
+      return result;
+    }
+
+    //========================================================================================================================
+
+    /* Finds the median of each pixel along Z with a 256-bin counting sort. For an even number of slices, the median is the
+     * mean of the two middle values, as in ImageJ's Z Project. */
+    private short[] median(byte[][] planes, int[] histogram, int[] medianHistogram, int pixelCount) {
+      short[] median = new short[pixelCount];
+      int lowRank = (slices - 1) / 2, highRank = slices / 2;                 // Ranks of the middle values, counting from 0.
+      for (int i = 0; i < pixelCount; i++) {
+        for (int z = 0; z < slices; z++) {
+          histogram[planes[z][i] & 0xFF]++;
+        }
+        int bin = 0, count = histogram[0];
+        while (count <= lowRank) {
+          count += histogram[++bin];
+        }
+        int low = bin;
+        while (count <= highRank) {
+          count += histogram[++bin];
+        }
+        int value = (low + bin) * SCALE / 2;
+        median[i] = (short) value;
+        medianHistogram[value]++;
+        for (int z = 0; z < slices; z++) {                                   // Clearing only the used bins is cheaper for short stacks.
+          histogram[planes[z][i] & 0xFF] = 0;
+        }
+      }
+      return median;
+    }
+
+    //========================================================================================================================
+
+    /* Adds one thread's histograms to the totals. */
+    private synchronized void addHistograms(int[][][] threadHistograms) {
+      for (int s = 0; s < threadHistograms.length; s++) {
+        if (threadHistograms[s] == null) continue;
+        if (histograms[s] == null) {
+          histograms[s] = new long[channels][65536];
+        }
+        for (int ch = 0; ch < channels; ch++) {
+          long[] total = histograms[s][ch];
+          int[] counts = threadHistograms[s][ch];
+          for (int v = 0; v < 65536; v++) {
+            total[v] += counts[v];
+          }
+        }
+      }
+    }
+
+    //========================================================================================================================
+
+    /* Returns a display range for a 16-bit statistic and channel (1-based) from the histogram of all its projections, with
+     * "saturated" percent of the pixels split evenly between the bottom and the top, as in ImageJ's Enhance Contrast. 
+     * Returns null if no histogram was kept for the statistic. */
+    public double[] getSaturatedRange(int statistic, int ch, double saturated) {
+      int s = 0;
+      while (s < STATISTICS.length && STATISTICS[s] != statistic) s++;
+      if (histograms == null || s == STATISTICS.length || histograms[s] == null) {
+        return null;
+      }
+      long[] histogram = histograms[s][ch - 1];
+      long pixelCount = 0;
+      for (int v = 0; v < 65536; v++) {
+        pixelCount += histogram[v];
+      }
+      long threshold = (long) (pixelCount * saturated / 200.0);
+
+      int min = 0;
+      long count = histogram[0];
+      while (count <= threshold && min < 65535) {
+        count += histogram[++min];
+      }
+      int max = 65535;
+      count = histogram[65535];
+      while (count <= threshold && max > min) {
+        count += histogram[--max];
+      }
+      if (max <= min) {                                                      // Flat image. Fall back to the full data range.
+        min = 0;
+        while (min < 65535 && histogram[min] == 0) min++;
+        max = 65535;
+        while (max > min && histogram[max] == 0) max--;
+      }
+      return new double[] {min, max};
+    }
+
+    //========================================================================================================================
+
+    /* Per-thread working arrays, allocated once and reused for every Z-stack. */
+    private class Accumulators {
+      int statistics;
+      int[] sum, sumSquares, max, histogram;
+      int[][][] histograms;                                                  // 16-bit histograms for this thread's projections.
+      byte[][] planes;
+
+      Accumulators(int statistics) {
+        this.statistics = statistics;
+        sum = new int[width * height];
+        if ((statistics & SD) != 0) sumSquares = new int[width * height];
+        if ((statistics & MAX) != 0) max = new int[width * height];
+        if ((statistics & MEDIAN) != 0) histogram = new int[256];
+        planes = reader != null ? new byte[slices][width * height] : new byte[slices][];
+        histograms = new int[STATISTICS.length][][];
+        if ((statistics & AVERAGE) != 0) histograms[0] = new int[channels][65536];
+        if ((statistics & MAX) != 0) histograms[1] = new int[channels][65536];
+        if ((statistics & MEDIAN) != 0) histograms[4] = new int[channels][65536];
+      }
+    }
+
+}
@@ -0,0 +1,106 @@
+package IJ_Plugins;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import ij.measure.ResultsTable;
+
+/* Records how long the commands of an interactive plugin take, split into the time spent computing and the time spent
+ * redrawing, in histograms that threads update without locking. The buckets are logarithmic, four to each power of two
+ * microseconds, so a percentile is known to within about 12%. */
+public class LatencyRecorder {
+
+	private ConcurrentSkipListMap<String, Histogram[]> commands = new ConcurrentSkipListMap<String, Histogram[]>();
+
+	private static final String[] PARTS = {"Compute", "Redraw", "Total"};
+	private static final int BUCKETS = 160;                                  // Up to 2^40 microseconds.
+
+	//------------------------------------------------------------------------------------------------------------------------
+
+    /* Records one run of a command. */
+    public void record(String command, long computeNanos, long redrawNanos) {
+      Histogram[] histograms = commands.get(command);
+      if (histograms == null) {
+        Histogram[] newHistograms = {new Histogram(), new Histogram(), new Histogram()};
+        histograms = commands.putIfAbsent(command, newHistograms);
+        if (histograms == null) histograms = newHistograms;
+      }
+      histograms[0].add(computeNanos / 1000);
+      histograms[1].add(redrawNanos / 1000);
+      histograms[2].add((computeNanos + redrawNanos) / 1000);
+    }
+
+    /* Returns a table with the count, mean, median, 95th and 99th percentiles, and maximum of the compute, redraw and total
+     * times of each command, in milliseconds. */
+    public ResultsTable getResults() {
+      ResultsTable table = new ResultsTable();
+      for (Map.Entry<String, Histogram[]> entry : commands.entrySet()) {
+        for (int part = 0; part < PARTS.length; part++) {
+          Histogram histogram = entry.getValue()[part];
+          long count = histogram.count.get();
+          if (count == 0) continue;
+          table.incrementCounter();
+          table.addValue("Command", entry.getKey());
+          table.addValue("Part", PARTS[part]);
+          table.addValue("Count", count);
+          table.addValue("Mean (ms)", histogram.total.get() / 1000.0 / count);
+          table.addValue("p50 (ms)", histogram.percentile(0.50) / 1000.0);
+          table.addValue("p95 (ms)", histogram.percentile(0.95) / 1000.0);
+          table.addValue("p99 (ms)", histogram.percentile(0.99) / 1000.0);
+          table.addValue("Max (ms)", histogram.max.get() / 1000.0);
+        }
+      }
+      return table;
+    }
+
+    //========================================================================================================================
+
+    /* Returns the bucket of a time in microseconds: times below 4 have their own buckets, and each later power of two is
+     * divided into four. */
+    private static int bucket(long micros) {
+      if (micros < 4) return (int) Math.max(micros, 0);
+      int exponent = 63 - Long.numberOfLeadingZeros(micros);
+      int quarter = (int) (micros >>> (exponent - 2)) & 3;
+      return Math.min(4 * (exponent - 1) + quarter, BUCKETS - 1);
+    }
+
+    /* Returns the middle of a bucket, in microseconds. */
+    private static double bucketMiddle(int bucket) {
+      if (bucket < 4) return bucket;
+      int exponent = bucket / 4 + 1, quarter = bucket % 4;
+      long lower = (4L + quarter) << (exponent - 2);
+      return lower + (1L << (exponent - 2)) / 2.0;
+    }
+
+    //========================================================================================================================
+
+    /* Counts of times in microseconds, with their total and maximum. */
+    private static class Histogram {
+      AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+      AtomicLong count = new AtomicLong(), total = new AtomicLong(), max = new AtomicLong();
+
+      void add(long micros) {
+        counts.incrementAndGet(bucket(micros));
+        count.incrementAndGet();
+        total.addAndGet(micros);
+        long previous = max.get();
+        while (micros > previous && !max.compareAndSet(previous, micros)) {
+          previous = max.get();
+        }
+      }
+
+      /* Returns the time below which the given fraction of the recorded times fall, in microseconds. */
+      double percentile(double fraction) {
+        long rank = (long) Math.ceil(fraction * count.get());
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+          seen += counts.get(i);
+          if (seen >= rank && seen > 0) return Math.min(bucketMiddle(i), max.get());
+        }
+        return max.get();
+      }
+    }
+
+}
@@ -2,23 +2,36 @@ package IJ_Plugins;
 
 import ij.*;
 import ij.plugin.PlugIn;
-import ij.plugin.Duplicator;
 import ij.process.*;
 import ij.measure.*;
 import ij.gui.GenericDialog;
+import ij.io.SaveDialog;
+import ij.util.ThreadUtil;
 import java.awt.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
-/* Converts a 4D hyperstack to a time series of 4-channel Z-stack montages, and autoscales the channel displays. */
+/* Converts a 4D hyperstack to a time series of 4-channel Z-stack montages, and autoscales the channel displays. The montage
+ * series is either shown in a window, or written frame by frame to a TIFF file so that its size is not limited by memory. */
 public class Make_Montage_Series implements PlugIn {
   
-	private ImagePlus originalImage, scaledImage;
-	private ImageProcessor scaled;
+	private ImagePlus originalImage;
 	
 	private int width, height, scaledWidth, scaledHeight, slices, frames, channels;   // Hyperstack parameters.
 	private int first, last, trimmedSlices;                                           // User-chosen slices.
 	private int maxWidth, maxHeight;                                                  // Maximum size of montage.
 	private double scaleFactor;
+	private int interpolation = ImageProcessor.BICUBIC;                               // BILINEAR is faster, BICUBIC is better.
+	private boolean wholeMovie = false;                                               // Autoscale from all frames?
+	private boolean showAutoscaleTable = false;                                       // Show the per-frame display maxima?
+	private int[][][] frameHistograms;                                                // Montage histograms, [ch - 1][t - 1][value].
 	private boolean validScaleFactor = false;
+	private boolean diskBacked = false;                                               // Montage kept in a temporary file?
+	private boolean writeToFile = false;                                              // Stream the montage to a TIFF file?
+	private volatile IOException writeError;                                          // Failure of a montage thread to write.
+	private int threadCount;                                                          // Frames tiled at once.
 	private int blackWindowWidth, blackWindowHeight, columns, rows;                   // Montage dimensions.
 	private String title;
 	
@@ -48,6 +61,7 @@ public class Make_Montage_Series implements PlugIn {
       slices = originalImage.getNSlices();
       frames = originalImage.getNFrames();
       channels = originalImage.getNChannels();				   // "channels" indexes the 2 – 4 input channels.
+      threadCount = Prefs.getThreads();
       
       Dimension screen = IJ.getScreenSize();
       maxWidth = screen.width - 2 * XCORNER - 10;               // 5-px borders on each side of the image window.
@@ -62,6 +76,13 @@ public class Make_Montage_Series implements PlugIn {
         gd.addNumericField("Scale Factor:", provisionalScaleFactor, 1);
         gd.addNumericField("First Slice:", first, 0);
         gd.addNumericField("Last Slice:", last, 0);
+        String[] interpolations = {"None", "Bilinear", "Bicubic"};                // Indexed like the ImageProcessor methods.
+        gd.addChoice("Interpolation:", interpolations, interpolations[interpolation]);
+        String[] autoscaleOptions = {"First frame", "Whole movie"};
+        gd.addChoice("Autoscale from:", autoscaleOptions, autoscaleOptions[wholeMovie ? 1 : 0]);
+        gd.addCheckbox("Show per-frame autoscale table", showAutoscaleTable);
+        String[] outputs = {"Image window", "TIFF file"};
+        gd.addChoice("Output:", outputs, outputs[writeToFile ? 1 : 0]);
         gd.showDialog();
         if (gd.wasCanceled()) return;
         
@@ -71,6 +92,10 @@ public class Make_Montage_Series implements PlugIn {
         
         first = (int) gd.getNextNumber();
         last = (int) gd.getNextNumber();
+        interpolation = gd.getNextChoiceIndex();
+        wholeMovie = gd.getNextChoiceIndex() == 1;
+        showAutoscaleTable = gd.getNextBoolean();
+        writeToFile = gd.getNextChoiceIndex() == 1;
         if (first < 1 || last > slices || last < first) {
           IJ.showMessage("Those slice numbers are not valid.");
           originalImage.close();
@@ -78,12 +103,7 @@ public class Make_Montage_Series implements PlugIn {
         }
         trimmedSlices = last - first + 1;                        // Actual number of slices used in the montage.
         
-        // Calculate how many scaled images will fit horizontally and vertically, separated by GAP pixels.
-        columns = (int) Math.floor((double) (maxWidth - GAP) / (double) (scaledWidth + GAP));
-        columns = Math.min(columns, trimmedSlices);
-        blackWindowWidth = columns * (scaledWidth + GAP) + GAP;
-        rows = (int) Math.ceil((double) trimmedSlices / (double) columns);
-        blackWindowHeight = rows * (scaledHeight + GAP) + GAP;
+        setLayout(maxWidth);
         if (blackWindowHeight > maxHeight) {
           IJ.showMessage("The images will not fit on the screen with that scale factor.");
           provisionalScaleFactor = findMaxScaleFactor();
@@ -93,91 +113,115 @@ public class Make_Montage_Series implements PlugIn {
         }
       }
       
-      // Create a scaled version of the original image.
-      scaledImage = new Duplicator().run(originalImage);
-      scaled = scaledImage.getProcessor();
+      if (writeToFile) {
+        SaveDialog sd = new SaveDialog("Save Montage Series", title + " Montage", ".tif");
+        if (sd.getFileName() == null) return;
+        File file = new File(sd.getDirectory(), sd.getFileName());
+        boolean written;
+        try {
+          written = writeMontage(file);
+        }
+        catch (IOException e) {
+          IJ.error("Make Montage Series", "The montage series could not be written to " + file + ":\n" + e.getMessage());
+          return;
+        }
+        finally {
+          originalImage.close();
+        }
+        IJ.showStatus(written ? "Montage series saved to " + file : "Plugin aborted.");
+        if (written && showAutoscaleTable) {
+          showAutoscaleTable();
+        }
+        frameHistograms = null;
+        return;
+      }
       
+      CompositeImage compositeMontage = buildMontage();
       originalImage.close();
-         
-      if (scaleFactor != 1.0) {
-        scaled.setInterpolationMethod(ImageProcessor.BICUBIC);      // BILINEAR is faster, BICUBIC is better.
-        StackProcessor sp = new StackProcessor(scaledImage.getStack(), scaled);
-        ImageStack s2 = sp.resize(scaledWidth, scaledHeight);
-        scaledImage.setStack(null, s2);
-      }
-      ImageStack scaledStack = scaledImage.getStack();
+      if (compositeMontage == null) {
+        IJ.showStatus("Plugin aborted.");
+        return;
+      }
+      compositeMontage.show();
+      if (diskBacked) {
+        IJ.showStatus("The montage series did not fit in memory, and is kept in a temporary file until it is saved.");
+      }
+      
+      if (showAutoscaleTable) {
+        showAutoscaleTable();
+      }
+      frameHistograms = null;
+      
+      compositeMontage.changes = true;
+      
+	}
+
+    //========================================================================================================================
+
+    /* Writes a montage series for an 8-bit hyperstack to a TIFF file without dialogs or a screen, for batch processing. 
+     * The layout fits the montage into montageWidth pixels, and up to "threads" frames are tiled at once, so that a batch
+     * running several series side by side can share the processors. The hyperstack is not closed. Throws
+     * IllegalArgumentException if the image or the parameters cannot be used, and returns false if the plugin was aborted. */
+    boolean writeMontageSeries(ImagePlus image, double scale, int firstSlice, int lastSlice, int montageWidth,
+                               int interpolationMethod, boolean autoscaleWholeMovie, int threads, File file)
+        throws IOException {
+      if ( !(image.getBitDepth() == 8) || !image.isHyperStack() || !(image.getNSlices() > 1) ) {
+        throw new IllegalArgumentException("This plugin requires an 8-bit TIFF 4D hyperstack.");
+      }
+      originalImage = image;
+      title = image.getTitle();
+      if (title.endsWith(".tif") || title.endsWith(".TIF")) {
+        title = title.substring(0, title.length() - 4);         // Remove the extension.
+      }
+      width = image.getWidth();
+      height = image.getHeight();
+      slices = image.getNSlices();
+      frames = image.getNFrames();
+      channels = image.getNChannels();
+      threadCount = Math.max(1, threads);
+      
+      scaleFactor = scale;
+      scaledWidth = (int) Math.round(width * scaleFactor);
+      scaledHeight = (int) Math.round(height * scaleFactor);
+      first = firstSlice;
+      last = (lastSlice < 1) ? slices : lastSlice;
+      if (scaledWidth < 1 || scaledHeight < 1 || first < 1 || last > slices || last < first) {
+        throw new IllegalArgumentException("The scale factor or slice numbers are not valid for " + image.getTitle() + ".");
+      }
+      trimmedSlices = last - first + 1;
+      interpolation = interpolationMethod;
+      wholeMovie = autoscaleWholeMovie;
+      setLayout(montageWidth);
       
-      // Make a black background window for the montage.
+      boolean written = writeMontage(file);
+      frameHistograms = null;
+      return written;
+    }
+    
+    //========================================================================================================================
+
+    /* Makes the composite montage from the original image, autoscales the channels, and records the Info used later to 
+     * regenerate a hyperstack. Returns null if the plugin was aborted. */
+    private CompositeImage buildMontage() {
+      // Make a black background window for the montage, on disk if the montage and the scaling buffers would not fit in 
+      // the free heap. The input hyperstack is already open, so only the new allocations are checked.
+      long scaledBytes = Math.min(threadCount, frames) * scalingBytes();
+      long outputBytes = DiskBackedStack.bytes(blackWindowWidth, blackWindowHeight, 4 * frames);
+      diskBacked = !DiskBackedStack.fitsInMemory(scaledBytes + outputBytes);
       CompositeImage compositeMontage = makeCompositeMontage(title, blackWindowWidth, blackWindowHeight, frames);
-      ImageProcessor composite = compositeMontage.getProcessor();
-      compositeMontage.show();
-   
-      int slice;
-      ImageProcessor ipSlice;
       
-      // Make composite montage.
-      int xPos, yPos;
-      int firstSlice = 0;
-      for (int t = 1; t <= frames; t++) {
-        for (int ch = 1; ch <= 4; ch++) {							// "ch" indexes the 4 output channels for the montage.
-          if (IJ.escapePressed()) {
-            compositeMontage.close();
-            IJ.showStatus("Plugin aborted.");
-            return;
-          }
-          compositeMontage.setPosition(ch, 1, t);
-          
-          if (channels == 2) {										// Green images only.
-        	    if (ch != 1 && ch != 3) {                                // The red and blue output channels will not be used.
-        	    	  if (ch == 2) {
-            	    firstSlice = 2 * slices * (t - 1) + 1;  			    // First slice in a Z-stack for input channel 1 and time t.
-            	  }
-            	  else if (ch == 4) {
-            	  	firstSlice = 2 * slices * (t - 1) + 2;				// Cell images are taken from input channel 2.
-            	  }
-        	    	  for (int z = first; z <= last; z++) {
-        	        slice = firstSlice + 2 * (z - 1);
-        	        ipSlice = scaledStack.getProcessor(slice);
-        	        xPos = GAP + ((z - first) % columns) * (scaledWidth + GAP);
-        	        yPos = GAP + ((z - first) / columns) * (scaledHeight + GAP);
-        	        composite.insert(ipSlice, xPos, yPos);
-        	      }
-        	    }
-          }
-          
-          else if (channels == 3) {									// Red and green images.
-        	  	if (ch != 3) {											// The blue output channel will not be used.
-        	  	  if (ch == 1 || ch == 2) {
-        	  	    firstSlice = 3 * slices * (t - 1) + ch;  			// First slice in a Z-stack for input channel ch and time t.
-        	  	  }
-        	  	  else if (ch == 4) {
-        	  	    firstSlice = 3 * slices * (t - 1) + 3;				// Cell images are taken from input channel 3.
-        	  	  }
-        	  	  for (int z = first; z <= last; z++) {
-        	        slice = firstSlice + 3 * (z - 1);
-        	        ipSlice = scaledStack.getProcessor(slice);
-        	        xPos = GAP + ((z - first) % columns) * (scaledWidth + GAP);
-        	        yPos = GAP + ((z - first) / columns) * (scaledHeight + GAP);
-        	        composite.insert(ipSlice, xPos, yPos);
-        	      }
-        	  	}
-          }
-          
-          else if (channels == 4) {									// Red, green, and blue images. All output channels will be used.
-        	    firstSlice = 4 * slices * (t - 1) + ch;					// First slice in a Z-stack for input channel ch and time t.
-        	    for (int z = first; z <= last; z++) {
-        	      slice = firstSlice + 4 * (z - 1);
-        	      ipSlice = scaledStack.getProcessor(slice);
-        	      xPos = GAP + ((z - first) % columns) * (scaledWidth + GAP);
-        	      yPos = GAP + ((z - first) / columns) * (scaledHeight + GAP);
-        	      composite.insert(ipSlice, xPos, yPos);
-        	    }
-          }
-          
+      // Make composite montage. Each input plane that reaches the montage is scaled just before it is inserted, so slices
+      // outside first..last and input channels without an output channel are never scaled.
+      if (!fillMontage(compositeMontage, null)) {
+        if (compositeMontage.getStack() instanceof DiskBackedStack) {
+          ((DiskBackedStack) compositeMontage.getStack()).close();      // The image was never shown, so close it here.
         }
+        compositeMontage.close();
+        return null;
+      }
+      if (diskBacked) {
+        compositeMontage.setStack(compositeMontage.getStack(), 4, 1, frames);  // Reload the planes that are on display.
       }
-      
-      scaledImage.close();
       
       if (channels == 4) {											// Set custom blue color for 3-color movies.
     	    Color myBlue = new Color(0, 96, 255);
@@ -186,83 +230,303 @@ public class Make_Montage_Series implements PlugIn {
       }
                                  
       for (int ch = 1; ch <= 4; ch++) {
-    	    if ( (channels == 2 && ch != 1 && ch != 3) || (channels == 3 && ch != 3) || (channels == 4) ) {
+    	    if (inputChannel(ch) > 0) {
           compositeMontage.setPosition(ch,1,1);
-          channelAdjust(compositeMontage, ch == 4);					// Adjust the fluorescence or gray threshold.
+          double[] range = displayRange(ch);        // Adjust the fluorescence or gray threshold.
+          compositeMontage.setDisplayRange(range[0], range[1]);
           compositeMontage.updateAndDraw();
     	    }
       }
       
       compositeMontage.setPosition(1,1,1);
+      compositeMontage.setProperty("Info", montageInfo());
       
-      // Record image data that will be used later to regenerate a hyperstack.
-      String compositeMontageInfo =     "slices: " + trimmedSlices + "\n" + 
-                                        "columns: " + columns + "\n" +
-                                        "channels: " + channels + "\n" +
-                                        "GAP: " + GAP + "\n" +
-                                        "slice width: " + scaledWidth + "\n" +
-                                        "slice height: " + scaledHeight;
-      compositeMontage.setProperty("Info", compositeMontageInfo);
+      return compositeMontage;
+    }
+    
+    /* Writes the montage series to a TIFF file as each frame is tiled, so that only the frames being tiled are held in 
+     * memory. The display ranges are written once every frame has been tiled. Returns false, and deletes the file, if the 
+     * plugin was aborted. */
+    private boolean writeMontage(File file) throws IOException {
+      double[] ranges = new double[8];
+      byte[][] luts = new byte[4][];
+      Color[] colors = {Color.red, Color.green, (channels == 4) ? new Color(0, 96, 255) : Color.blue, Color.white};
+      for (int ch = 1; ch <= 4; ch++) {
+        ranges[2 * ch - 1] = 255;
+        luts[ch - 1] = TiffPlaneWriter.lutBytes(colors[ch - 1]);
+      }
       
-      compositeMontage.changes = true;
+      TiffPlaneWriter writer = new TiffPlaneWriter(file, blackWindowWidth, blackWindowHeight, 4, 1, frames, montageInfo(),
+                                                   ranges, luts);
+      boolean written = false;
+      try {
+        writeError = null;
+        written = fillMontage(null, writer);
+        if (writeError != null) {
+          throw writeError;
+        }
+        if (written) {
+          for (int ch = 1; ch <= 4; ch++) {
+            if (inputChannel(ch) > 0) {
+              double[] range = displayRange(ch);
+              ranges[2 * ch - 2] = range[0];
+              ranges[2 * ch - 1] = range[1];
+            }
+          }
+          writer.setDisplayRanges(ranges);
+        }
+      }
+      finally {
+        writer.close();
+        if (!written) file.delete();
+      }
+      return written;
+    }
+    
+    /* Returns the image data that will be used later to regenerate a hyperstack. */
+    private String montageInfo() {
+      return "slices: " + trimmedSlices + "\n" + 
+             "columns: " + columns + "\n" +
+             "channels: " + channels + "\n" +
+             "GAP: " + GAP + "\n" +
+             "slice width: " + scaledWidth + "\n" +
+             "slice height: " + scaledHeight;
+    }
+
+    //========================================================================================================================
+    
+    /* Calculates how many scaled images will fit horizontally and vertically in maxWidth, separated by GAP pixels. */
+    private void setLayout(int maxWidth) {
+      columns = (int) Math.floor((double) (maxWidth - GAP) / (double) (scaledWidth + GAP));
+      columns = Math.max(1, Math.min(columns, trimmedSlices));
+      blackWindowWidth = columns * (scaledWidth + GAP) + GAP;
+      rows = (int) Math.ceil((double) trimmedSlices / (double) columns);
+      blackWindowHeight = rows * (scaledHeight + GAP) + GAP;
+    }
+    
+    /* Returns the number of bytes in the montage series that setLayout would make for a hyperstack of the given size. */
+    static long montageBytes(int width, int height, int frames, double scale, int trimmedSlices, int maxWidth) {
+      Make_Montage_Series layout = new Make_Montage_Series();
+      layout.scaledWidth = (int) Math.round(width * scale);
+      layout.scaledHeight = (int) Math.round(height * scale);
+      layout.trimmedSlices = trimmedSlices;
+      layout.setLayout(maxWidth);
+      return DiskBackedStack.bytes(layout.blackWindowWidth, layout.blackWindowHeight, 4 * frames);
+    }
+    
+    /* Returns the bytes that one montage thread uses to scale input planes: the scaled plane, and the bicubic work array. */
+    private long scalingBytes() {
+      if (scaleFactor == 1.0) return 0;
+      long bytes = (long) scaledWidth * scaledHeight;
+      if (interpolation == ImageProcessor.BICUBIC) {
+        bytes += 8L * height * scaledWidth;
+      }
+      return bytes;
+    }
+    
+    //========================================================================================================================
+
+    /* Returns the input channel that supplies output channel ch of the montage, or 0 if the output channel is not used. */
+    private int inputChannel(int ch) {
+      if (channels == 2) {                                          // Green images only. Cell images are in input channel 2.
+        return (ch == 2) ? 1 : (ch == 4) ? 2 : 0;
+      }
+      else if (channels == 3) {                                     // Red and green images. Cell images are in input channel 3.
+        return (ch == 1 || ch == 2) ? ch : (ch == 4) ? 3 : 0;
+      }
+      return ch;                                                    // Red, green, and blue images. All output channels are used.
+    }
+    
+    //========================================================================================================================
+
+    /* Works out the (input channel, z, t) planes that reach the montage, then scales and inserts them, dividing the frames 
+     * among worker threads. Each thread scales into one reusable plane. The montage planes are either those of 
+     * compositeMontage, or, if a writer is given, reusable planes that each thread writes to the file when they are done. 
+     * Returns false if the plugin was aborted or a plane could not be written. */
+    private boolean fillMontage(final CompositeImage compositeMontage, final TiffPlaneWriter writer) {
+      final ImageStack inputStack = originalImage.getStack();
+      final ImageStack montageStack = (writer == null) ? compositeMontage.getStack() : null;
+      final byte[] blankPlane = (writer != null) ? new byte[blackWindowWidth * blackWindowHeight] : null;
+      final PlaneResampler resampler = (scaleFactor != 1.0) ?
+              PlaneResampler.get(width, height, scaledWidth, scaledHeight, interpolation) : null;
       
-	}
+      // The output channels that are used, with the input channels that supply them.
+      int used = 0;
+      for (int ch = 1; ch <= 4; ch++) {
+        if (inputChannel(ch) > 0) used++;
+      }
+      final int[] outputChannels = new int[used], inputChannels = new int[used];
+      for (int ch = 1, i = 0; ch <= 4; ch++) {
+        if (inputChannel(ch) > 0) {
+          outputChannels[i] = ch;
+          inputChannels[i++] = inputChannel(ch);
+        }
+      }
+      
+      // Histograms of each used channel and frame are filled as the tiles are inserted. The black background and gaps
+      // are counted as zeros, so that the histograms cover the whole montage plane.
+      frameHistograms = new int[4][][];
+      for (int i = 0; i < outputChannels.length; i++) {
+        frameHistograms[outputChannels[i] - 1] = new int[frames][256];
+      }
+      final int background = blackWindowWidth * blackWindowHeight - trimmedSlices * scaledWidth * scaledHeight;
+      
+      final AtomicInteger nextFrame = new AtomicInteger(1);
+      final AtomicInteger framesDone = new AtomicInteger(0);
+      final AtomicBoolean aborted = new AtomicBoolean(false);
+      Thread[] threads = ThreadUtil.createThreadArray(Math.min(threadCount, frames));
+      for (int i = 0; i < threads.length; i++) {
+        threads[i] = new Thread("Montage-" + i) {
+          public void run() {
+            byte[] scaledPlane = (resampler != null) ? new byte[scaledWidth * scaledHeight] : null;
+            double[] work = (resampler != null) ? resampler.createWorkArray() : null;
+            // The tiles are at the same places in every frame, so the gaps of reused planes stay black.
+            byte[][] framePlanes = (writer != null) ? new byte[outputChannels.length][blankPlane.length] : null;
+            for (int t = nextFrame.getAndIncrement(); t <= frames; t = nextFrame.getAndIncrement()) {
+              for (int i = 0; i < outputChannels.length; i++) {
+                if (IJ.escapePressed() || aborted.get()) {
+                  aborted.set(true);
+                  return;
+                }
+                int index = (t - 1) * 4 + outputChannels[i];                  // 4 channels, 1 slice.
+                byte[] montagePixels = (writer != null) ? framePlanes[i] : (byte[]) montageStack.getPixels(index);
+                int[] histogram = frameHistograms[outputChannels[i] - 1][t - 1];
+                histogram[0] += background;
+                for (int z = first; z <= last; z++) {
+                  byte[] pixels = (byte[]) inputStack.getPixels(originalImage.getStackIndex(inputChannels[i], z, t));
+                  if (resampler != null) {
+                    resampler.resize(pixels, scaledPlane, work);
+                    pixels = scaledPlane;
+                  }
+                  PixelKernels.histogram(pixels, histogram);
+                  int xPos = GAP + ((z - first) % columns) * (scaledWidth + GAP);
+                  int yPos = GAP + ((z - first) / columns) * (scaledHeight + GAP);
+                  for (int y = 0; y < scaledHeight; y++) {
+                    System.arraycopy(pixels, y * scaledWidth, montagePixels, (yPos + y) * blackWindowWidth + xPos, scaledWidth);
+                  }
+                }
+                // A disk-backed stack hands out copies of its planes, so the finished plane is written back.
+                if (writer == null) {
+                  montageStack.setPixels(montagePixels, index);
+                }
+              }
+              if (writer != null) {
+                try {
+                  for (int i = 0, ch = 1; ch <= 4; ch++) {
+                    boolean used = i < outputChannels.length && outputChannels[i] == ch;
+                    writer.writePlane((t - 1) * 4 + ch, used ? framePlanes[i++] : blankPlane);
+                  }
+                }
+                catch (IOException e) {
+                  writeError = e;
+                  aborted.set(true);
+                  return;
+                }
+              }
+              IJ.showProgress(framesDone.incrementAndGet(), frames);
+            }
+          }
+        };
+      }
+      ThreadUtil.startAndJoin(threads);
+      return !aborted.get();
+    }
 
     //========================================================================================================================
 
-    /* Creates a black hyperstack composite image window for displaying a multi-channel montage time series. */
+    /* Creates a black hyperstack composite image window for displaying a multi-channel montage time series. If diskBacked 
+     * is set, the planes are kept in a temporary file, and the number of planes cannot change. */
     private CompositeImage makeCompositeMontage(String title, int windowWidth, int windowHeight, int frames) {
     	  int montageChannels = 4;		// red, green, blue, gray
-      ImagePlus blackImage = IJ.createImage(null, "8-bit black", windowWidth, windowHeight, 1);
-      ImageProcessor black = blackImage.getProcessor();
-      
-      ImageStack xycztStack = new ImageStack(windowWidth, windowHeight);
-      for (int ch = 1; ch <= montageChannels; ch++) {
-        for (int t = 1; t <= frames; t++) {
-          xycztStack.addSlice(null, black.duplicate());
+      ImageStack xycztStack = null;
+      if (diskBacked) {
+        try {
+          xycztStack = new DiskBackedStack(windowWidth, windowHeight, montageChannels * frames);
+        }
+        catch (IOException e) {
+          IJ.log("A temporary file could not be made for the montage series (" + e.getMessage() + "), so it is kept in memory.");
+          diskBacked = false;
+        }
+      }
+      if (xycztStack == null) {
+        xycztStack = new ImageStack(windowWidth, windowHeight);
+        for (int n = 1; n <= montageChannels * frames; n++) {
+          xycztStack.addSlice(null, new byte[windowWidth * windowHeight]);
         }
       }
-      blackImage.close();
       
       ImagePlus montage = new ImagePlus(title + " Montage.tif", xycztStack);
       montage.setDimensions(montageChannels, 1, frames);
       CompositeImage compositeMontage = new CompositeImage(montage, CompositeImage.COMPOSITE);
       compositeMontage.setOpenAsHyperStack(true);
       montage.close();
+      if (xycztStack instanceof DiskBackedStack) {
+        ((DiskBackedStack) xycztStack).closeWith(compositeMontage);     // Delete the temporary file with the window.
+      }
       
       return compositeMontage;
     }
     
     //========================================================================================================================
     
-    /* Automatically adjusts the threshold for the currently selected channel of the image. */
-    private void channelAdjust(ImagePlus imp, boolean gray) {
-      Calibration cal = imp.getCalibration();
-      imp.setCalibration(null);
-      ImageStatistics stats = imp.getStatistics();          	// Get uncalibrated statistics.
-      imp.setCalibration(cal);
-      
-      if (gray) {
+    /* Returns the automatically adjusted display range {min, max} of a montage channel. Fluorescence channels use the 
+     * histograms that were filled while the montage was made, either for the first frame or for the whole movie. */
+    private double[] displayRange(int ch) {
+      if (ch == 4) {
         // The contrast is reduced by extending the range of minimum and maximum brightness values beyond the normal 0-255 range.
         // Increasing GRAY_ADJUST makes the gray images darker and smoother.
-    	    imp.setDisplayRange(-GRAY_ADJUST, 10 * GRAY_ADJUST);
-      }
-      else {
-        // The display maximum value is set to the highest number at which the fraction of pixels having at least that
-        // value exceeds 1/COLOR_ADJUST. Lowering COLOR_ADJUST results in more saturated pixels.
-    	    int cutoff = stats.pixelCount/COLOR_ADJUST;
-    	    int[] histogram = stats.histogram;
-        boolean found = false;
-        int i = 256;
-        int sum = 0;
-        while (!found) {
-          i--;
-          sum += histogram[i];
-          found = (sum > cutoff) || (i == 1);
+        return new double[] {-GRAY_ADJUST, 10 * GRAY_ADJUST};
+      }
+      long[] histogram = new long[256];
+      int lastFrame = wholeMovie ? frames : 1;
+      for (int t = 1; t <= lastFrame; t++) {
+        int[] frameHistogram = frameHistograms[ch - 1][t - 1];
+        for (int i = 0; i < 256; i++) {
+          histogram[i] += frameHistogram[i];
         }
-        imp.setDisplayRange(0, i);
       }
-      
+      return new double[] {0, displayMax(histogram)};
+    }
+    
+    /* The display maximum value is set to the highest number at which the fraction of pixels having at least that value 
+     * exceeds 1/COLOR_ADJUST. Lowering COLOR_ADJUST results in more saturated pixels. */
+    private int displayMax(long[] histogram) {
+      long pixelCount = 0;
+      for (int i = 0; i < 256; i++) {
+        pixelCount += histogram[i];
+      }
+      long cutoff = pixelCount/COLOR_ADJUST;
+      boolean found = false;
+      int i = 256;
+      long sum = 0;
+      while (!found) {
+        i--;
+        sum += histogram[i];
+        found = (sum > cutoff) || (i == 1);
+      }
+      return i;
+    }
+    
+    //========================================================================================================================
+    
+    /* Shows the display maximum that autoscaling would give for each fluorescence channel in each frame. */
+    private void showAutoscaleTable() {
+      String[] names = {"Red", "Green", "Blue"};
+      ResultsTable table = new ResultsTable();
+      long[] histogram = new long[256];
+      for (int t = 1; t <= frames; t++) {
+        table.incrementCounter();
+        table.addValue("Frame", t);
+        for (int ch = 1; ch <= 3; ch++) {
+          if (frameHistograms[ch - 1] == null) continue;
+          int[] frameHistogram = frameHistograms[ch - 1][t - 1];
+          for (int i = 0; i < 256; i++) {
+            histogram[i] = frameHistogram[i];
+          }
+          table.addValue(names[ch - 1] + " Max", displayMax(histogram));
+        }
+      }
+      table.show(title + " Autoscale");
     }
     
     //========================================================================================================================
@@ -275,12 +539,7 @@ public class Make_Montage_Series implements PlugIn {
         scaledWidth = (int) Math.round(width * testScaleFactor);
         scaledHeight = (int) Math.round(height * testScaleFactor);
         
-        // Calculate how many scaled images will fit horizontally and vertically, separated by GAP pixels.
-        columns = (int) Math.floor((double) (maxWidth - GAP) / (double) (scaledWidth + GAP));
-        columns = Math.min(columns, trimmedSlices);
-        blackWindowWidth = columns * (scaledWidth + GAP) + GAP;
-        rows = (int) Math.ceil((double) trimmedSlices / (double) columns);
-        blackWindowHeight = rows * (scaledHeight + GAP) + GAP;
+        setLayout(maxWidth);
         if (blackWindowHeight <= maxHeight) {
           return testScaleFactor;
         }
@@ -1,142 +1,140 @@
 package IJ_Plugins;
 
 import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import ij.*;
 import ij.plugin.PlugIn;
 import ij.process.*;
 import ij.gui.*;
+import ij.io.OpenDialog;
+import ij.io.SaveDialog;
+import ij.util.ThreadUtil;
 
-/* Merges two 4-channel hyperstacks, either to add the fluorescence, or to place one above the other. */
+/* Merges two or more 4-channel hyperstacks, either to add the fluorescence, or to arrange them in a grid of rows and
+ * columns. With two hyperstacks and the default grid of two rows, the first is placed above the second. The hyperstacks
+ * can either be opened, or streamed plane by plane from their files into the merged file, so that memory use does not
+ * depend on the length of the movies. Every merged plane is made in one pass over the matching input planes, and the
+ * (channel, frame) Z-stacks are divided among worker threads. */
 public class Merge_Two_Hyperstacks implements PlugIn {
-  
-	private ImagePlus firstImage, secondImage, mergedImage;
-	private CompositeImage compositeMergedImage;
-	private ImageProcessor merged;
+
+	private ImagePlus[] inputImages;                                         // Opened input hyperstacks.
+	private TiffPlaneReader[] readers;                                       // Input files when streaming.
+	private TiffPlaneWriter writer;                                          // Merged file when streaming.
+	private Object[] mergedPlanes;                                           // Merged planes when not streaming.
 	private int width, height, channels, slices, frames, images;                                // Hyperstack parameters.
+	private int inputs, rows, columns, mergedWidth, mergedHeight;            // Number of inputs and merged layout.
   private double redMax, greenMax, blueMax, grayMax, grayMin;
 	private boolean mergeFluorescence = false;
+	private volatile boolean aborted;                                        // Escape pressed during the merge?
+	private volatile String writeError;                                      // First error while streaming, if any.
 	private String title, info;
 	private static final int GAP = 10;
-	
-	//------------------------------------------------------------------------------------------------------------------------  
-	
+	private static final Color MY_BLUE = new Color(0, 96, 255);              // Custom blue color for 3-color movies.
+
+	//------------------------------------------------------------------------------------------------------------------------
+
     public void run(String arg) {
-      
+
       IJ.resetEscape();
-      
+
       GenericDialog gd = new GenericDialog("Choose Merge Option");
-      String[] mergeOptions = {"Merge fluorescence signals", "Place first above second"};
+      String[] mergeOptions = {"Merge fluorescence signals", "Arrange in a grid"};
       gd.addChoice("Merge Option:", mergeOptions, mergeOptions[0]);
-      gd.addMessage("\nThe next step is to open the two 4D hyperstacks.");
+      gd.addNumericField("Number of hyperstacks:", 2, 0);
+      gd.addNumericField("Grid rows:", 2, 0);
+      gd.addNumericField("Grid columns:", 1, 0);
+      String[] methods = {"Open hyperstacks", "Stream from files to merged file"};
+      gd.addChoice("Method:", methods, methods[0]);
+      gd.addMessage("\nThe next step is to open the 4D hyperstacks.\nIn a grid, they fill each row from left to right.");
       gd.showDialog();
       if (gd.wasCanceled()) return;
-      
+
       String mergeOption = gd.getNextChoice();
       if (mergeOption.equals(mergeOptions[0])) {
         mergeFluorescence = true;
       }
-
-      // Open the first hyperstack.
-      IJ.run("Open...");
-      firstImage = IJ.getImage();
-      title = firstImage.getTitle();
-      if ( !(firstImage.getBitDepth() == 8)  || !(title.endsWith(".tif") || title.endsWith(".TIF")) || 
-          !firstImage.isHyperStack() || !(firstImage.getNSlices() > 1) || !(firstImage.getNChannels() == 4) ) {
-        IJ.showMessage("This plugin requires a 4-channel 8-bit RGB TIFF 4D hyperstack.");
-        firstImage.close();
+      inputs = (int) gd.getNextNumber();
+      rows = (int) gd.getNextNumber();
+      columns = (int) gd.getNextNumber();
+      boolean streamed = gd.getNextChoice().equals(methods[1]);
+      if (gd.invalidNumber() || inputs < 2 || (!mergeFluorescence && (rows < 1 || columns < 1 || rows * columns < inputs))) {
+        IJ.showMessage("At least two hyperstacks are needed, and the grid must have room for all of them.");
         return;
       }
-      
-      width = firstImage.getWidth();
-      height = firstImage.getHeight();
-      slices = firstImage.getNSlices();
-      frames = firstImage.getNFrames();
+
+      if (streamed) {
+        mergeStreamed();
+      }
+      else {
+        mergeOpened();
+      }
+	}
+
+    //========================================================================================================================
+
+    /* Opens all of the hyperstacks, merges them into a new hyperstack, and shows it. */
+    private void mergeOpened() {
+      inputImages = new ImagePlus[inputs];
+      for (int k = 0; k < inputs; k++) {
+        IJ.run("Open...");
+        inputImages[k] = IJ.getImage();
+        title = inputImages[k].getTitle();
+        if ( !(inputImages[k].getBitDepth() == 8)  || !(title.endsWith(".tif") || title.endsWith(".TIF")) ||
+            !inputImages[k].isHyperStack() || !(inputImages[k].getNSlices() > 1) || !(inputImages[k].getNChannels() == 4) ) {
+          IJ.showMessage("This plugin requires a 4-channel 8-bit RGB TIFF 4D hyperstack.");
+          closeInputs(k + 1);
+          return;
+        }
+
+        if (k == 0) {
+          width = inputImages[0].getWidth();
+          height = inputImages[0].getHeight();
+          slices = inputImages[0].getNSlices();
+          frames = inputImages[0].getNFrames();
+
+          info = (String) inputImages[0].getProperty("Info");
+          int start = info.indexOf(":") + 2;
+          channels = Integer.parseInt(info.substring(start));           // Number of channels in the original movie.
+        }
+
+        // Ensure that the hyperstacks are matched.
+        else if ( !(inputImages[k].getWidth() == width) || !(inputImages[k].getHeight() == height) ||
+                  !(inputImages[k].getNSlices() == slices) || !(inputImages[k].getNFrames() == frames) ) {
+          IJ.showMessage("The hyperstacks must be matched.");
+          closeInputs(k + 1);
+          return;
+        }
+      }
       images = 4 * slices * frames;
-      
-      info = (String) firstImage.getProperty("Info");
-      int start = info.indexOf(":") + 2;
-      channels = Integer.parseInt(info.substring(start));               // Number of channels in the original movie.
-      
-      // Open the second hyperstack.
-      IJ.run("Open...");
-      secondImage = IJ.getImage();
-      title = secondImage.getTitle();
-      if ( !(secondImage.getBitDepth() == 8)  || !(title.endsWith(".tif") || title.endsWith(".TIF")) || 
-          !secondImage.isHyperStack() || !(secondImage.getNSlices() > 1) || !(secondImage.getNChannels() == 4) ) {
-        IJ.showMessage("This plugin requires a 4-channel 8-bit RGB TIFF 4D hyperstack.");
-        firstImage.close();
-        secondImage.close();
+      setMergedSize();
+
+      mergedPlanes = new Object[images];
+      mergeAll();
+      if (aborted) {
+        closeInputs(inputs);
+        IJ.showStatus("Plugin aborted.");
         return;
       }
-      
-      // Ensure that the two hyperstacks are matched.
-      if ( !(secondImage.getWidth() == width) || !(secondImage.getHeight() == height) ||
-           !(secondImage.getNSlices() == slices) || !(secondImage.getNFrames() == frames) ) {
-             IJ.showMessage("The two hyperstacks must be matched.");
-             firstImage.close();
-             secondImage.close();
-             return;
-           }
-      
-      // Create the merged image.
-      int mergedHeight;
-      if (mergeFluorescence) { 
-        mergedHeight = height;
-      }
-      else {
-        mergedHeight = 2 * height + GAP;
+
+      ImageStack mergedStack = new ImageStack(mergedWidth, mergedHeight);
+      for (int n = 0; n < images; n++) {
+        mergedStack.addSlice(null, mergedPlanes[n]);
       }
-      mergedImage = IJ.createImage("Merged.tif", "8-bit black", width, mergedHeight, images);
+      mergedPlanes = null;
+      ImagePlus mergedImage = new ImagePlus("Merged.tif", mergedStack);
       mergedImage.setDimensions(4, slices, frames);
-      compositeMergedImage = new CompositeImage(mergedImage, CompositeImage.COMPOSITE);
-      mergedImage.close();
+      CompositeImage compositeMergedImage = new CompositeImage(mergedImage, CompositeImage.COMPOSITE);
       compositeMergedImage.setOpenAsHyperStack(true);
-      merged = compositeMergedImage.getProcessor();
-      
-      int slice;
-      ImageProcessor ipSlice;
-      ImageStack firstStack = firstImage.getStack();
-      ImageStack secondStack = secondImage.getStack();
-
-      for (int ch = 1; ch <= 4; ch++) {
-        for (int t = 1; t <= frames; t++) {
-          int firstSlice = 4 * slices * (t - 1) + ch;                   // First slice in a Z-stack for channel ch and time t.
-          for (int z = 1; z <= slices; z++) {
-            if (IJ.escapePressed()) {
-              firstImage.close();
-              secondImage.close();
-              mergedImage.close();
-              IJ.showStatus("Plugin aborted.");
-              return;
-            }
-            slice = firstSlice + 4 * (z - 1);
-            compositeMergedImage.setPosition(ch, z, t);
-            
-            // Add data from the first image.
-            ipSlice = firstStack.getProcessor(slice);
-            merged.insert(ipSlice, 0, 0);
-            
-            // Now add data from the second image.
-            ipSlice = secondStack.getProcessor(slice);
-            if (mergeFluorescence) {                                    // Add second image fluorescence data.
-              if (ch != 4) {
-                merged.copyBits(ipSlice, 0, 0, Blitter.ADD);
-              }
-            }
-            else {                                                      // Copy second image below first.
-              merged.copyBits(ipSlice, 0, height + GAP, Blitter.COPY);
-            }
-          }
-        }
-      }
-      
+
       if (channels == 4) {                                              // Set custom blue color for 3-color movies.
-        Color myBlue = new Color(0, 96, 255);
-        LUT blueLUT = LUT.createLutFromColor(myBlue);
+        LUT blueLUT = LUT.createLutFromColor(MY_BLUE);
         compositeMergedImage.setChannelLut(blueLUT, 3);
     }
-      
+
+      ImagePlus firstImage = inputImages[0];
       firstImage.setPosition(4,1,1);
       grayMax = firstImage.getDisplayRangeMax();
       grayMin = firstImage.getDisplayRangeMin();
@@ -146,10 +144,9 @@ public class Merge_Two_Hyperstacks implements PlugIn {
       greenMax = firstImage.getDisplayRangeMax();
       firstImage.setPosition(1,1,1);
       redMax = firstImage.getDisplayRangeMax();
-      
-      firstImage.close();
-      secondImage.close();
-      
+
+      closeInputs(inputs);
+
       compositeMergedImage.setPosition(4,1,1);
       compositeMergedImage.setDisplayRange(grayMin, grayMax);
       compositeMergedImage.setPosition(3,1,1);
@@ -158,12 +155,252 @@ public class Merge_Two_Hyperstacks implements PlugIn {
       compositeMergedImage.setDisplayRange(0, greenMax);
       compositeMergedImage.setPosition(1,1,1);
       compositeMergedImage.setDisplayRange(0, redMax);
-      
+
       String hyperStackInfo = "fluorescence channels: " + channels;
       compositeMergedImage.setProperty("Info", hyperStackInfo);
-      
+
       compositeMergedImage.changes = true;
       compositeMergedImage.show();
-	}
+    }
+
+    //========================================================================================================================
+
+    /* Reads matching planes from the input files, merges them, and writes each merged plane to the output file right away.
+     * Each worker thread holds only one plane from each input and one merged plane. */
+    private void mergeStreamed() {
+      readers = new TiffPlaneReader[inputs];
+      for (int k = 0; k < inputs; k++) {
+        readers[k] = openReader("Open Hyperstack " + (k + 1) + " of " + inputs);
+        if (readers[k] == null) {
+          closeReaders();
+          return;
+        }
+
+        if (k == 0) {
+          width = readers[0].getWidth();
+          height = readers[0].getHeight();
+          slices = readers[0].getNSlices();
+          frames = readers[0].getNFrames();
+        }
+
+        // Ensure that the hyperstacks are matched.
+        else if ( !(readers[k].getWidth() == width) || !(readers[k].getHeight() == height) ||
+                  !(readers[k].getNSlices() == slices) || !(readers[k].getNFrames() == frames) ) {
+          IJ.showMessage("The hyperstacks must be matched.");
+          closeReaders();
+          return;
+        }
+      }
+      images = 4 * slices * frames;
+      setMergedSize();
+
+      info = readers[0].getInfo();
+      if (info == null || info.indexOf(":") < 0) {
+        IJ.showMessage(readers[0].getName() + " does not record the number of fluorescence channels.");
+        closeReaders();
+        return;
+      }
+      int start = info.indexOf(":") + 2;
+      channels = Integer.parseInt(info.substring(start).trim());          // Number of channels in the original movie.
+
+      SaveDialog sd = new SaveDialog("Save Merged Hyperstack", "Merged", ".tif");
+      if (sd.getFileName() == null) {
+        closeReaders();
+        return;
+      }
+
+      // The display ranges and LUTs match those of the merged image made in memory.
+      grayMin = readers[0].getDisplayRange(4)[0];
+      grayMax = readers[0].getDisplayRange(4)[1];
+      double[] ranges = {0, readers[0].getDisplayRange(1)[1], 0, readers[0].getDisplayRange(2)[1],
+                         0, readers[0].getDisplayRange(3)[1], grayMin, grayMax};
+      Color[] colors = {Color.red, Color.green, channels == 4 ? MY_BLUE : Color.blue, Color.white};
+      byte[][] luts = new byte[4][];
+      for (int ch = 0; ch < 4; ch++) {
+        luts[ch] = TiffPlaneWriter.lutBytes(colors[ch]);
+      }
+
+      String hyperStackInfo = "fluorescence channels: " + channels;
+      File file = new File(sd.getDirectory(), sd.getFileName());
+      try {
+        writer = new TiffPlaneWriter(file, mergedWidth, mergedHeight, 4, slices, frames, hyperStackInfo, ranges, luts);
+      }
+      catch (IOException e) {
+        IJ.error("Merge Hyperstacks", "Could not create " + sd.getFileName() + ":\n" + e.getMessage());
+        closeReaders();
+        return;
+      }
+
+      mergeAll();
+
+      try {
+        writer.close();
+      }
+      catch (IOException e) {
+        if (writeError == null) writeError = e.getMessage();
+      }
+      closeReaders();
+      if (aborted || writeError != null) {
+        file.delete();                                                     // Do not leave a partly merged file.
+      }
+      if (writeError != null) {
+        IJ.error("Merge Hyperstacks", "Could not merge the hyperstacks:\n" + writeError);
+      }
+      else if (aborted) {
+        IJ.showStatus("Plugin aborted.");
+      }
+      else {
+        IJ.showStatus("Merged hyperstack saved to " + sd.getFileName());
+      }
+    }
+
+    //========================================================================================================================
+
+    /* Merges every plane, dividing the (channel, frame) Z-stacks among worker threads. */
+    private void mergeAll() {
+      final AtomicInteger nextStack = new AtomicInteger(0);
+      final AtomicInteger stacksDone = new AtomicInteger(0);
+      final int stacks = 4 * frames;
+
+      Thread[] threads = ThreadUtil.createThreadArray(Math.min(Prefs.getThreads(), stacks));
+      for (int i = 0; i < threads.length; i++) {
+        threads[i] = new Thread("Merge-" + i) {
+          public void run() {
+            byte[][] inputPlanes = new byte[inputs][];
+            if (readers != null) {
+              for (int k = 0; k < inputs; k++) {
+                inputPlanes[k] = new byte[width * height];
+              }
+            }
+            byte[] mergedPlane = (readers != null) ? new byte[mergedWidth * mergedHeight] : null;
+
+            for (int s = nextStack.getAndIncrement(); s < stacks; s = nextStack.getAndIncrement()) {
+              int ch = s % 4 + 1;
+              int t = s / 4 + 1;
+              int firstSlice = 4 * slices * (t - 1) + ch;               // First slice in a Z-stack for channel ch and time t.
+              for (int z = 1; z <= slices; z++) {
+                if (aborted || writeError != null) return;
+                if (IJ.escapePressed()) {
+                  aborted = true;
+                  return;
+                }
+                int slice = firstSlice + 4 * (z - 1);
+                try {
+                  for (int k = 0; k < inputs; k++) {
+                    if (readers != null) {
+                      readers[k].readPlane(slice, inputPlanes[k]);
+                    }
+                    else {
+                      inputPlanes[k] = (byte[]) inputImages[k].getStack().getPixels(slice);
+                    }
+                  }
+                  if (readers == null) {
+                    mergedPlane = new byte[mergedWidth * mergedHeight];
+                  }
+                  mergePlane(inputPlanes, mergedPlane, ch);
+                  if (readers != null) {
+                    writer.writePlane(slice, mergedPlane);
+                  }
+                  else {
+                    mergedPlanes[slice - 1] = mergedPlane;
+                  }
+                }
+                catch (IOException e) {
+                  writeError = e.getMessage();
+                  return;
+                }
+              }
+              IJ.showProgress(stacksDone.incrementAndGet(), stacks);
+            }
+          }
+        };
+      }
+      ThreadUtil.startAndJoin(threads);
+    }
+
+    //========================================================================================================================
+
+    /* Makes one merged plane for channel ch from the matching input planes. Fluorescence is added with saturation, and
+     * the gray channel is taken from the first hyperstack. In a grid, each input is copied row by row into its cell, and
+     * the gaps stay black. */
+    private void mergePlane(byte[][] inputPlanes, byte[] mergedPlane, int ch) {
+      int planeSize = width * height;
+      if (mergeFluorescence) {
+        System.arraycopy(inputPlanes[0], 0, mergedPlane, 0, planeSize);
+        if (ch == 4) return;
+        for (int k = 1; k < inputs; k++) {
+          PixelKernels.addSaturated(mergedPlane, inputPlanes[k]);
+        }
+      }
+      else {
+        for (int k = 0; k < inputs; k++) {
+          int x = (k % columns) * (width + GAP);
+          int y = (k / columns) * (height + GAP);
+          for (int row = 0; row < height; row++) {
+            System.arraycopy(inputPlanes[k], row * width, mergedPlane, (y + row) * mergedWidth + x, width);
+          }
+        }
+      }
+    }
+
+    //========================================================================================================================
+
+    private void setMergedSize() {
+      if (mergeFluorescence) {
+        mergedWidth = width;
+        mergedHeight = height;
+      }
+      else {
+        mergedWidth = columns * width + (columns - 1) * GAP;
+        mergedHeight = rows * height + (rows - 1) * GAP;
+      }
+    }
+
+    /* Closes the first "count" input hyperstacks. */
+    private void closeInputs(int count) {
+      for (int k = 0; k < count; k++) {
+        inputImages[k].changes = false;
+        inputImages[k].close();
+      }
+    }
+
+    //========================================================================================================================
+
+    /* Asks for a hyperstack file and returns a plane reader for it, or null if it cannot be used. */
+    private TiffPlaneReader openReader(String dialogTitle) {
+      OpenDialog od = new OpenDialog(dialogTitle);
+      if (od.getFileName() == null) return null;
+      TiffPlaneReader reader;
+      try {
+        reader = new TiffPlaneReader(od.getDirectory(), od.getFileName());
+      }
+      catch (IOException e) {
+        IJ.showMessage(e.getMessage());
+        return null;
+      }
+      if ( !(reader.getNSlices() > 1) || !(reader.getNChannels() == 4) ) {
+        IJ.showMessage("This plugin requires a 4-channel 8-bit RGB TIFF 4D hyperstack.");
+        try {
+          reader.close();
+        }
+        catch (IOException e) {
+          IJ.log("Could not close " + reader.getName() + ": " + e.getMessage());
+        }
+        return null;
+      }
+      return reader;
+    }
+
+    private void closeReaders() {
+      for (int k = 0; k < readers.length; k++) {
+        if (readers[k] == null) continue;
+        try {
+          readers[k].close();
+        }
+        catch (IOException e) {
+          IJ.log("Could not close " + readers[k].getName() + ": " + e.getMessage());
+        }
+      }
+    }
 
 }
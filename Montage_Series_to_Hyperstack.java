@@ -1,11 +1,11 @@
 package IJ_Plugins;
 
 import java.awt.Color;
+import java.io.IOException;
 
 import ij.*;
 import ij.plugin.PlugIn;
 import ij.process.LUT;
-import ij.gui.*;
 import ij.gui.GenericDialog;
 
 /* Converts an edited 4-channel montage series to a hyperstack that can be used to make and analyze movies. */
@@ -62,41 +62,60 @@ public class Montage_Series_to_Hyperstack implements PlugIn {
       width = extractParameter(parameters[4]);
       height = extractParameter(parameters[5]);
       
-      // Create a 4D hyperstack with 4 channels (red, green, blue, gray).
-      int images = 4 * slices * frames;
-      ImagePlus backToStack = IJ.createImage(title + " 4D.tif", "8-bit black", width, height, images);
+      // Create a 4D hyperstack with 4 channels (red, green, blue, gray). If it would not fit in the free heap, its planes 
+      // are kept in a temporary file, so the stack keeps its number of planes.
+      ImageStack stack;
+      try {
+        stack = DiskBackedStack.createStack(width, height, 4 * slices * frames);
+      }
+      catch (IOException e) {
+        IJ.error("Montage Series to Hyperstack", "The hyperstack does not fit in memory, and a temporary file could not be made.");
+        return;
+      }
+      ImagePlus backToStack = new ImagePlus(title + " 4D.tif", stack);
       backToStack.setDimensions(4, slices, frames);
       CompositeImage hyperStack = new CompositeImage(backToStack, CompositeImage.COMPOSITE);
       hyperStack.setOpenAsHyperStack(true);
       backToStack.close();
+      if (stack instanceof DiskBackedStack) {
+        ((DiskBackedStack) stack).closeWith(hyperStack);                // Delete the temporary file with the window.
+      }
       
       originalImage.killRoi();
       
-      // Copy the slices from the montage to the hyperstack.
+      // Copy the slices from the montage to the hyperstack, row by row. Each plane is written back with setPixels, which
+      // a disk-backed stack needs.
+      ImageStack montageStack = originalImage.getStack();
       int xPos, yPos;
       for (int t = first; t <= last; t++) {
         for (int ch = 1; ch <= 4; ch++) {
           if (IJ.escapePressed()) {
             originalImage.close();
+            if (stack instanceof DiskBackedStack) {
+              ((DiskBackedStack) stack).close();                          // The image was never shown, so close it here.
+            }
             hyperStack.close();
             IJ.showStatus("Plugin aborted.");
             return;
           }
-          originalImage.setPositionWithoutUpdate(ch, 1, t);
+          int montageWidth = montageStack.getWidth();
+          byte[] montagePixels = (byte[]) montageStack.getPixels(originalImage.getStackIndex(ch, 1, t));
           for (int z = 1; z <= slices; z++) {
             xPos = GAP + ((z - 1) % columns) * (width + GAP);
             yPos = GAP + ((z - 1) / columns) * (height + GAP);
-            Roi roi = new Roi(xPos, yPos, width, height);
-            originalImage.setRoi(roi, false);
-            originalImage.copy(false);
-            hyperStack.setPosition(ch, z, t - first + 1);
-            hyperStack.paste();
+            int index = hyperStack.getStackIndex(ch, z, t - first + 1);
+            byte[] pixels = (byte[]) stack.getPixels(index);
+            for (int y = 0; y < height; y++) {
+              System.arraycopy(montagePixels, (yPos + y) * montageWidth + xPos, pixels, y * width, width);
+            }
+            stack.setPixels(pixels, index);
           }
           IJ.showProgress(t - first + 1, last - first + 1);
         }
       }
-      
-      originalImage.killRoi();
+      if (stack.isVirtual()) {
+        hyperStack.setStack(stack, 4, slices, frames);                // Reload the planes that are on display.
+      }
       
       if (channels == 4) {                                              // Set custom blue color for 3-color movies.
         Color myBlue = new Color(0, 96, 255);
@@ -0,0 +1,107 @@
+package IJ_Plugins;
+
+/* Pixel kernels for whole 8-bit and 16-bit planes, used in place of ImageJ commands and Blitter operations where only the
+ * pixel arithmetic is needed. Each kernel is a simple counted loop over the pixel array, without calls or exceptions in the
+ * loop body, so that the JIT compiler can unroll it and vectorize it with the SIMD instructions of the processor. */
+public class PixelKernels {
+
+    /* Adds the src pixels to the dst pixels, saturating at 255, as Blitter.ADD does for 8-bit images. */
+    public static void addSaturated(byte[] dst, byte[] src) {
+      for (int i = 0; i < dst.length; i++) {
+        dst[i] = (byte) Math.min((dst[i] & 0xFF) + (src[i] & 0xFF), 255);
+      }
+    }
+
+    /* Subtracts a value from each pixel, clamping at 0, as ImageJ's Process>Math>Subtract does for 16-bit images. Like
+     * ImageJ, the value is truncated to an integer. */
+    public static void subtractClamped(short[] pixels, double value) {
+      int v = (int) value;
+      for (int i = 0; i < pixels.length; i++) {
+        pixels[i] = (short) Math.max((pixels[i] & 0xFFFF) - v, 0);
+      }
+    }
+
+    /* Turns a 16-bit plane into a mask: pixels above the threshold become 65535, and the rest become 0. This is the same as
+     * subtracting the threshold and then setting every remaining non-zero pixel to 65535. */
+    public static void thresholdToMask(short[] pixels, int threshold) {
+      for (int i = 0; i < pixels.length; i++) {
+        pixels[i] = (short) ((pixels[i] & 0xFFFF) > threshold ? 0xFFFF : 0);
+      }
+    }
+
+    /* Keeps the dst pixels where the mask is set, as the ImageCalculator AND does. */
+    public static void and(short[] dst, short[] mask) {
+      for (int i = 0; i < dst.length; i++) {
+        dst[i] &= mask[i];
+      }
+    }
+
+    /* Keeps the dst pixels where the mask is not set. This is AND with the inverted mask, without making the inverted copy. */
+    public static void andNot(short[] dst, short[] mask) {
+      for (int i = 0; i < dst.length; i++) {
+        dst[i] &= ~mask[i];
+      }
+    }
+
+    //========================================================================================================================
+
+    public static long sum(byte[] pixels) {
+      long sum = 0;
+      for (int i = 0; i < pixels.length; i++) {
+        sum += pixels[i] & 0xFF;
+      }
+      return sum;
+    }
+
+    public static long sum(short[] pixels) {
+      long sum = 0;
+      for (int i = 0; i < pixels.length; i++) {
+        sum += pixels[i] & 0xFFFF;
+      }
+      return sum;
+    }
+
+    public static long sumOfSquares(byte[] pixels) {
+      long sum = 0;
+      for (int i = 0; i < pixels.length; i++) {
+        int v = pixels[i] & 0xFF;
+        sum += v * v;
+      }
+      return sum;
+    }
+
+    public static long sumOfSquares(short[] pixels) {
+      long sum = 0;
+      for (int i = 0; i < pixels.length; i++) {
+        long v = pixels[i] & 0xFFFF;
+        sum += v * v;
+      }
+      return sum;
+    }
+
+    /* Returns the mean of a whole plane, which is what getStatistics().mean gives for an image without a ROI. */
+    public static double mean(byte[] pixels) {
+      return (double) sum(pixels) / pixels.length;
+    }
+
+    public static double mean(short[] pixels) {
+      return (double) sum(pixels) / pixels.length;
+    }
+
+    //========================================================================================================================
+
+    /* Adds the pixel counts of an 8-bit plane to a 256-bin histogram. */
+    public static void histogram(byte[] pixels, int[] histogram) {
+      for (int i = 0; i < pixels.length; i++) {
+        histogram[pixels[i] & 0xFF]++;
+      }
+    }
+
+    /* Adds the pixel counts of a 16-bit plane to a 65536-bin histogram. */
+    public static void histogram(short[] pixels, int[] histogram) {
+      for (int i = 0; i < pixels.length; i++) {
+        histogram[pixels[i] & 0xFFFF]++;
+      }
+    }
+
+}
@@ -0,0 +1,299 @@
+package IJ_Plugins;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.*;
+import ij.process.*;
+import ij.util.ThreadUtil;
+
+/* Resizes 8-bit planes with the same results as ImageJ's ByteProcessor.resize, for the bicubic, bilinear and no
+ * interpolation methods. ImageJ works out the source position and the interpolation weights again for every pixel of
+ * every plane. Here the source positions, cubic weights, bilinear fractions and edge tests are computed once for each
+ * axis, so that a resampler made for one source size and scale can be reused for every plane of a stack. The bicubic
+ * kernel is separable, so each source row is filtered horizontally once, and the output rows are then combined from the
+ * filtered rows, in the same order of additions as ImageJ. For an integer scale factor without interpolation, each pixel
+ * is simply replicated. Stacks are resized in parallel across planes. */
+public class PlaneResampler {
+
+	private int srcWidth, srcHeight, dstWidth, dstHeight, method;
+	private Axis xAxis, yAxis;
+	private boolean useImageJ;                                               // Sizes that ImageJ handles as special cases.
+	private boolean replicate;                                               // Integer scale factor without interpolation?
+	private int xFactor, yFactor;                                            // Replication factors.
+
+	private static PlaneResampler lastResampler;                             // Most recently requested resampler.
+
+	//------------------------------------------------------------------------------------------------------------------------
+
+    public PlaneResampler(int srcWidth, int srcHeight, int dstWidth, int dstHeight, int method) {
+      this.srcWidth = srcWidth;
+      this.srcHeight = srcHeight;
+      this.dstWidth = dstWidth;
+      this.dstHeight = dstHeight;
+      this.method = method;
+
+      // ImageJ crops planes that keep their size, and resizes single rows or columns linearly.
+      if ((srcWidth == dstWidth && srcHeight == dstHeight) ||
+          ((srcWidth == 1 || srcHeight == 1) && method != ImageProcessor.NONE)) {
+        useImageJ = true;
+        return;
+      }
+      xAxis = new Axis(srcWidth, dstWidth);
+      yAxis = new Axis(srcHeight, dstHeight);
+      useImageJ = xAxis.outside || yAxis.outside;
+
+      if (method == ImageProcessor.NONE && dstWidth % srcWidth == 0 && dstHeight % srcHeight == 0) {
+        xFactor = dstWidth / srcWidth;
+        yFactor = dstHeight / srcHeight;
+        replicate = xAxis.replicates(xFactor) && yAxis.replicates(yFactor);
+      }
+    }
+
+    /* Returns a resampler for the given sizes and method, reusing the last one if it matches. */
+    public static synchronized PlaneResampler get(int srcWidth, int srcHeight, int dstWidth, int dstHeight, int method) {
+      PlaneResampler r = lastResampler;
+      if (r == null || r.srcWidth != srcWidth || r.srcHeight != srcHeight || r.dstWidth != dstWidth ||
+          r.dstHeight != dstHeight || r.method != method) {
+        lastResampler = new PlaneResampler(srcWidth, srcHeight, dstWidth, dstHeight, method);
+      }
+      return lastResampler;
+    }
+
+    //========================================================================================================================
+
+    public int getWidth() {
+      return dstWidth;
+    }
+
+    public int getHeight() {
+      return dstHeight;
+    }
+
+    /* Returns a working array for resize(byte[], byte[], double[]). Each thread needs its own. */
+    public double[] createWorkArray() {
+      return (method == ImageProcessor.BICUBIC && !useImageJ) ? new double[srcHeight * dstWidth] : null;
+    }
+
+    /* Returns a resized copy of one plane. */
+    public byte[] resize(byte[] src) {
+      byte[] dst = new byte[dstWidth * dstHeight];
+      resize(src, dst, createWorkArray());
+      return dst;
+    }
+
+    /* Resizes one plane into dst, using a working array from createWorkArray(). */
+    public void resize(byte[] src, byte[] dst, double[] work) {
+      if (useImageJ) {
+        ByteProcessor ip = new ByteProcessor(srcWidth, srcHeight, src);
+        ip.setInterpolationMethod(method);
+        System.arraycopy((byte[]) ip.resize(dstWidth, dstHeight).getPixels(), 0, dst, 0, dst.length);
+      }
+      else if (replicate) {
+        replicate(src, dst);
+      }
+      else if (method == ImageProcessor.BICUBIC) {
+        resizeBicubic(src, dst, work);
+      }
+      else if (method == ImageProcessor.BILINEAR) {
+        for (int y = 0; y < dstHeight; y++) {
+          for (int x = 0; x < dstWidth; x++) {
+            dst[y * dstWidth + x] = (byte) ((int) (bilinear(src, x, y) + 0.5) & 255);
+          }
+        }
+      }
+      else {
+        for (int y = 0; y < dstHeight; y++) {
+          int srcRow = yAxis.nearest[y] * srcWidth;
+          int dstRow = y * dstWidth;
+          for (int x = 0; x < dstWidth; x++) {
+            dst[dstRow + x] = src[srcRow + xAxis.nearest[x]];
+          }
+        }
+      }
+    }
+
+    /* Resizes every plane of a stack, dividing the planes among worker threads. */
+    public ImageStack resize(final ImageStack stack) {
+      final int size = stack.getSize();
+      final Object[] planes = new Object[size];
+      final AtomicInteger nextPlane = new AtomicInteger(0);
+      final AtomicInteger planesDone = new AtomicInteger(0);
+
+      Thread[] threads = ThreadUtil.createThreadArray(Math.min(Prefs.getThreads(), size));
+      for (int i = 0; i < threads.length; i++) {
+        threads[i] = new Thread("Resampler-" + i) {
+          public void run() {
+            double[] work = createWorkArray();
+            for (int n = nextPlane.getAndIncrement(); n < size; n = nextPlane.getAndIncrement()) {
+              byte[] dst = new byte[dstWidth * dstHeight];
+              resize((byte[]) stack.getPixels(n + 1), dst, work);
+              planes[n] = dst;
+              IJ.showProgress(planesDone.incrementAndGet(), size);
+            }
+          }
+        };
+      }
+      ThreadUtil.startAndJoin(threads);
+
+      ImageStack resized = new ImageStack(dstWidth, dstHeight);
+      for (int n = 0; n < size; n++) {
+        resized.addSlice(stack.getSliceLabel(n + 1), planes[n]);
+      }
+      return resized;
+    }
+
+    //========================================================================================================================
+
+    /* Bicubic resize. Each source row is filtered horizontally into the working array, and each output row then combines
+     * four filtered rows. Output pixels near an edge are interpolated bilinearly, as in ImageJ. */
+    private void resizeBicubic(byte[] src, byte[] dst, double[] work) {
+      int first = xAxis.firstInterior, last = xAxis.lastInterior;
+      for (int v = 0; v < srcHeight; v++) {
+        int srcRow = v * srcWidth;
+        int workRow = v * dstWidth;
+        for (int x = first; x <= last; x++) {
+          int u = srcRow + xAxis.base[x] - 1;
+          double[] w = xAxis.weights[x];
+          double p = 0.0;
+          p = p + (src[u] & 255) * w[0];
+          p = p + (src[u + 1] & 255) * w[1];
+          p = p + (src[u + 2] & 255) * w[2];
+          p = p + (src[u + 3] & 255) * w[3];
+          work[workRow + x] = p;
+        }
+      }
+
+      for (int y = 0; y < dstHeight; y++) {
+        int dstRow = y * dstWidth;
+        if (yAxis.edge[y]) {
+          for (int x = 0; x < dstWidth; x++) {
+            dst[dstRow + x] = clamp(bilinear(src, x, y));
+          }
+          continue;
+        }
+        for (int x = 0; x < first; x++) {
+          dst[dstRow + x] = clamp(bilinear(src, x, y));
+        }
+        int row = (yAxis.base[y] - 1) * dstWidth;
+        double[] w = yAxis.weights[y];
+        for (int x = first; x <= last; x++) {
+          double q = 0.0;
+          q = q + work[row + x] * w[0];
+          q = q + work[row + dstWidth + x] * w[1];
+          q = q + work[row + 2 * dstWidth + x] * w[2];
+          q = q + work[row + 3 * dstWidth + x] * w[3];
+          dst[dstRow + x] = clamp(q);
+        }
+        for (int x = last + 1; x < dstWidth; x++) {
+          dst[dstRow + x] = clamp(bilinear(src, x, y));
+        }
+      }
+    }
+
+    /* Bilinear interpolation at the clamped source position for output pixel (x, y). */
+    private double bilinear(byte[] src, int x, int y) {
+      int xbase = xAxis.linearBase[x], ybase = yAxis.linearBase[y];
+      double xFraction = xAxis.fraction[x], yFraction = yAxis.fraction[y];
+      int offset = ybase * srcWidth + xbase;
+      int lowerLeft = src[offset] & 255;
+      int lowerRight = src[offset + 1] & 255;
+      int upperRight = src[offset + srcWidth + 1] & 255;
+      int upperLeft = src[offset + srcWidth] & 255;
+      double upperAverage = upperLeft + xFraction * (upperRight - upperLeft);
+      double lowerAverage = lowerLeft + xFraction * (lowerRight - lowerLeft);
+      return lowerAverage + yFraction * (upperAverage - lowerAverage);
+    }
+
+    /* Copies each source pixel into a block of xFactor by yFactor output pixels. */
+    private void replicate(byte[] src, byte[] dst) {
+      for (int v = 0; v < srcHeight; v++) {
+        int srcRow = v * srcWidth;
+        int dstRow = v * yFactor * dstWidth;
+        for (int u = 0; u < srcWidth; u++) {
+          byte value = src[srcRow + u];
+          int d = dstRow + u * xFactor;
+          for (int k = 0; k < xFactor; k++) {
+            dst[d + k] = value;
+          }
+        }
+        for (int k = 1; k < yFactor; k++) {
+          System.arraycopy(dst, dstRow, dst, dstRow + k * dstWidth, dstWidth);
+        }
+      }
+    }
+
+    private static byte clamp(double value) {
+      int v = (int) (value + 0.5);
+      if (v < 0) v = 0;
+      if (v > 255) v = 255;
+      return (byte) v;
+    }
+
+    //========================================================================================================================
+
+    /* Source positions and interpolation tables along one axis, computed as in ByteProcessor.resize. */
+    private class Axis {
+      int[] nearest;                                                         // Source pixel without interpolation.
+      int[] base;                                                            // floor(position), for the cubic kernel.
+      double[][] weights;                                                    // Cubic weights for base-1 to base+2.
+      boolean[] edge;                                                        // Too close to an edge for the cubic kernel?
+      int[] linearBase;                                                      // Clamped position, for bilinear interpolation.
+      double[] fraction;
+      int firstInterior, lastInterior;                                       // Range of positions that are not at an edge.
+      boolean outside;                                                       // Any position outside the source plane?
+
+      Axis(int srcSize, int dstSize) {
+        double srcCenter = srcSize / 2.0;
+        double dstCenter = dstSize / 2.0;
+        double scale = (double) dstSize / srcSize;
+        if (method != ImageProcessor.NONE && dstSize != srcSize) {
+          dstCenter += scale / 4.0;
+        }
+        double limit = srcSize - 1.0, limit2 = srcSize - 1.001;
+
+        nearest = new int[dstSize];
+        base = new int[dstSize];
+        weights = new double[dstSize][];
+        edge = new boolean[dstSize];
+        linearBase = new int[dstSize];
+        fraction = new double[dstSize];
+        firstInterior = dstSize;
+        lastInterior = -1;
+        for (int i = 0; i < dstSize; i++) {
+          double position = (i - dstCenter) / scale + srcCenter;
+          nearest[i] = (int) position;
+          if (method == ImageProcessor.NONE) {
+            outside |= position < 0.0 || nearest[i] >= srcSize;
+            continue;
+          }
+          outside |= position < -1.0 || position >= srcSize;
+
+          double clamped = position;
+          if (clamped < 0.0) clamped = 0.0;
+          if (clamped >= limit) clamped = limit2;
+          linearBase[i] = (int) clamped;
+          fraction[i] = clamped - linearBase[i];
+
+          base[i] = (int) Math.floor(position);
+          edge[i] = base[i] <= 0 || base[i] >= srcSize - 2;
+          if (!edge[i]) {
+            weights[i] = new double[4];
+            for (int k = 0; k < 4; k++) {
+              weights[i][k] = ImageProcessor.cubic(position - (base[i] - 1 + k));
+            }
+            firstInterior = Math.min(firstInterior, i);
+            lastInterior = i;
+          }
+        }
+      }
+
+      /* Checks that each source pixel maps to exactly "factor" consecutive output pixels. */
+      boolean replicates(int factor) {
+        for (int i = 0; i < nearest.length; i++) {
+          if (nearest[i] != i / factor) return false;
+        }
+        return true;
+      }
+    }
+
+}
@@ -1,19 +1,95 @@
 package IJ_Plugins;
 
+import java.io.IOException;
+
 import ij.*;
 import ij.plugin.*;
+import ij.process.*;
+import ij.measure.Calibration;
+import ij.gui.GenericDialog;
+import ij.io.OpenDialog;
 
-/* Converts a 4-channel 4D hyperstack to 16-bit and does an average projection. */
+/* Converts a 4-channel 4D hyperstack to 16-bit and does an average projection. Optionally, maximum, sum, standard deviation
+ * and median projections are made in the same pass, and the hyperstack can be streamed from its file instead of being
+ * opened. */
 public class Project_Hyperstack implements PlugIn {
   
 	private ImagePlus hyperStack, projection;
+	private ImagePlus[] projections;                                         // Direct projections, one for each statistic.
+	private TiffPlaneReader reader;                                          // Plane reader for streamed projections.
+	private HyperstackProjector projector;                                   // Direct projector, which keeps the histograms.
+	private int[] projectionStatistics;                                      // Statistic shown in each direct projection.
 	private double grayMax, grayMin;                                         // Gray channel range set during processing.
 	private String title;
+	private int statistics;                                                  // HyperstackProjector statistics to project.
+	private boolean oneHyperstack;                                           // Combine the statistics into one hyperstack?
+	
+	private static final double SATURATED = 0.1;                             // Percent saturated pixels for the display ranges.
 	
 	//------------------------------------------------------------------------------------------------------------------------  
 	
     public void run(String arg) {
 
+      GenericDialog gd = new GenericDialog("Projection Method");
+      String[] methods = {"Direct single-pass projection", "Direct projection streamed from file", "ImageJ commands"};
+      gd.addChoice("Method:", methods, methods[0]);
+      gd.addMessage("Direct projection can make several projections in one pass:");
+      gd.addCheckbox("Average", true);
+      gd.addCheckbox("Max intensity", false);
+      gd.addCheckbox("Sum", false);
+      gd.addCheckbox("Standard deviation", false);
+      gd.addCheckbox("Median", false);
+      String[] outputs = {"Separate images", "One hyperstack"};
+      gd.addChoice("Output:", outputs, outputs[0]);
+      gd.showDialog();
+      if (gd.wasCanceled()) return;
+      String method = gd.getNextChoice();
+      boolean direct = !method.equals(methods[2]);
+      boolean streamed = method.equals(methods[1]);
+      statistics = 0;
+      for (int s = 0; s < HyperstackProjector.STATISTICS.length; s++) {
+        if (gd.getNextBoolean()) {
+          statistics |= HyperstackProjector.STATISTICS[s];
+        }
+      }
+      oneHyperstack = gd.getNextChoice().equals(outputs[1]);
+      if (direct && statistics == 0) {
+        IJ.showMessage("Please choose at least one projection.");
+        return;
+      }
+      
+      if (streamed) {
+        // The hyperstack is read plane by plane from the file, so it never needs to fit in memory.
+        OpenDialog od = new OpenDialog("Choose 8-bit TIFF Hyperstack", "");
+        if (od.getFileName() == null) return;
+        title = od.getFileName();
+        if (!(title.endsWith(".tif") || title.endsWith(".TIF"))) {
+          IJ.showMessage("This plugin requires an 8-bit TIFF hyperstack.");
+          return;
+        }
+        try {
+          reader = new TiffPlaneReader(od.getDirectory(), title);
+        }
+        catch (IOException e) {
+          IJ.showMessage("This plugin requires an 8-bit TIFF hyperstack.\n \n" + e.getMessage());
+          return;
+        }
+        if (!(reader.getNSlices() > 1) || !(reader.getNChannels() > 1)) {
+          IJ.showMessage("This plugin requires an 8-bit TIFF hyperstack.");
+          closeReader();
+          return;
+        }
+        grayMin = reader.getDisplayRange(4)[0];
+        grayMax = reader.getDisplayRange(4)[1];
+        
+        projector = new HyperstackProjector(reader);
+        projectDirectly(reader.getWidth(), reader.getHeight(), reader.getNChannels(),
+                        reader.getNFrames(), reader.getCalibration());
+        closeReader();
+        showProjections();
+        return;
+      }
+
       hyperStack = IJ.getImage();
       title = hyperStack.getTitle();                                      // Keep the extension.
  
@@ -28,6 +104,130 @@ public class Project_Hyperstack implements PlugIn {
       grayMax = hyperStack.getDisplayRangeMax();
       grayMin = hyperStack.getDisplayRangeMin();
       
+      if (direct) {
+        projector = new HyperstackProjector(hyperStack);
+        projectDirectly(hyperStack.getWidth(), hyperStack.getHeight(),
+                        hyperStack.getNChannels(), hyperStack.getNFrames(), hyperStack.getCalibration());
+        hyperStack.changes = false;
+        hyperStack.close();
+        showProjections();
+      }
+      else {
+        projectWithCommands();
+        setDisplayRanges(true, 0);
+      }
+      
+	}
+
+    //========================================================================================================================
+    
+    /* Shows the direct projections and sets their display ranges. */
+    private void showProjections() {
+      if (projections == null) return;
+      for (int i = 0; i < projections.length; i++) {
+        projection = projections[i];
+        projection.show();
+        int statistic = projectionStatistics[i];
+        setDisplayRanges(statistic != HyperstackProjector.SUM && statistic != HyperstackProjector.SD, statistic);
+      }
+    }
+    
+    //========================================================================================================================
+    
+    /* Closes the streaming reader. */
+    private void closeReader() {
+      try {
+        reader.close();
+      }
+      catch (IOException e) {
+        IJ.log("Project Hyperstack: " + e.getMessage());
+      }
+    }
+    
+    //========================================================================================================================
+    
+    /* Sets the display ranges for the four channels of the projection. If keepGray is true, the original custom gray 
+     * range is preserved. The fluorescence ranges come from the histograms that the projector kept for the statistic, 
+     * and Enhance Contrast is only run when there is no such histogram. */
+    private void setDisplayRanges(boolean keepGray, int statistic) {
+      for (int ch = 4; ch >= 1; ch--) {
+        projection.setPosition(ch,1,1);
+        if (ch == 4 && keepGray) {
+          projection.setDisplayRange(grayMin * 256, grayMax * 256);
+          continue;
+        }
+        double[] range = (projector == null) ? null : projector.getSaturatedRange(statistic, ch, SATURATED);
+        if (range != null) {
+          projection.setDisplayRange(range[0], range[1]);
+        }
+        else {
+          IJ.run("Enhance Contrast", "saturated=" + SATURATED);
+        }
+      }
+      projection.updateAndDraw();
+    }
+    
+    //========================================================================================================================
+    
+    /* Projects each Z-stack of 8-bit planes in a single pass, for all of the chosen statistics, without intermediate copies. 
+     * The results are either separate images or one hyperstack with the statistics along Z. */
+    private void projectDirectly(int width, int height, int channels, int frames,
+                                 Calibration cal) {
+      ImageStack[] stacks = projector.project(statistics);
+      if (stacks == null) return;
+      
+      String[] prefixes = new String[stacks.length];
+      int[] stackStatistics = new int[stacks.length];
+      int n = 0;
+      for (int s = 0; s < HyperstackProjector.STATISTICS.length; s++) {
+        if ((statistics & HyperstackProjector.STATISTICS[s]) != 0) {
+          stackStatistics[n] = HyperstackProjector.STATISTICS[s];
+          prefixes[n++] = HyperstackProjector.PREFIXES[s];
+        }
+      }
+      
+      if (oneHyperstack && stacks.length > 1) {
+        // Interleave the statistics as Z slices, converting to 32-bit so that all of the planes have the same type.
+        ImageStack combined = new ImageStack(width, height);
+        for (int t = 1; t <= frames; t++) {
+          for (int s = 0; s < stacks.length; s++) {
+            for (int ch = 1; ch <= channels; ch++) {
+              ImageProcessor ip = stacks[s].getProcessor((t - 1) * channels + ch);
+              combined.addSlice(prefixes[s].substring(0, 3), ip.convertToFloat());
+            }
+          }
+        }
+        projections = new ImagePlus[1];
+        projections[0] = makeComposite("PROJ_" + title, combined, channels, stacks.length, frames, cal);
+        projectionStatistics = new int[] {stackStatistics[0]};           // The first statistic sets the display ranges.
+      }
+      else {
+        projections = new ImagePlus[stacks.length];
+        projectionStatistics = stackStatistics;
+        for (int s = 0; s < stacks.length; s++) {
+          projections[s] = makeComposite(prefixes[s] + title, stacks[s], channels, 1, frames, cal);
+        }
+      }
+    }
+    
+    //========================================================================================================================
+    
+    /* Wraps a projection stack in a composite hyperstack with the calibration of the original hyperstack. */
+    private CompositeImage makeComposite(String imageTitle, ImageStack stack, int channels, int slices, int frames,
+                                         Calibration cal) {
+      ImagePlus imp = new ImagePlus(imageTitle, stack);
+      imp.setDimensions(channels, slices, frames);
+      imp.setCalibration(cal);
+      CompositeImage composite = new CompositeImage(imp, CompositeImage.COMPOSITE);
+      composite.setOpenAsHyperStack(true);
+      return composite;
+    }
+    
+    //========================================================================================================================
+    
+    /* Converts the hyperstack to 16-bit with ImageJ commands, then runs Z Project. */
+    private void projectWithCommands() {
+      
       // Split the image into channels, convert each channel to 16-bit, and then merge back into a hyperstack.
       IJ.run("Split Channels");
       String C1_Window = "C1-" + title;
@@ -53,21 +253,6 @@ public class Project_Hyperstack implements PlugIn {
       IJ.selectWindow(title);
       IJ.run("Close");
       projection = IJ.getImage();
-      
-      // Set the display ranges for the four channels, preserving the original custom gray range.
-      projection.setPosition(4,1,1);
-      projection.setDisplayRange(grayMin * 256, grayMax * 256);
-      projection.updateAndDraw();
-      projection.setPosition(3,1,1);
-      IJ.run("Enhance Contrast", "saturated=0.1");
-      projection.updateAndDraw();
-      projection.setPosition(2,1,1);
-      IJ.run("Enhance Contrast", "saturated=0.1");
-      projection.updateAndDraw();
-      projection.setPosition(1,1,1);
-      IJ.run("Enhance Contrast", "saturated=0.1");
-      projection.updateAndDraw();
-      
-	}
+    }
 
 }
@@ -19,9 +19,7 @@ import ij.plugin.frame.RoiManager;
 
 public class Quantify_Overlap implements PlugIn {
   
-	private ImagePlus image, roiImage, imageCopy, binaryImage, invertedBinaryImage, subtractedBinaryImage, redInGreen, greenInRed;
-	private ImageProcessor binary;
-	private short[] pixels;
+	private ImagePlus image, roiImage, imageCopy, binaryImage, subtractedBinaryImage, redInGreen, greenInRed;
 	private String title, options, processedChoice, redThreshold, greenThreshold, blueThreshold, outputChoice, roiName;
 	private boolean measureGreen, measureRed, ignoreBlue, showImages, leaveOpen, fraction;
 	private boolean manager = false;
@@ -319,109 +317,54 @@ public class Quantify_Overlap implements PlugIn {
       Toolbar.setBackgroundColor(Color.black);
       IJ.run(roiImage, "Clear Outside", "stack");
 
-      // Make a binary version of the ROI image, and an inverted binary version of the ROI image for use if blue structures
-      // will be ignored. For each channel, an adjustment removes low-intensity signal to leave clean structures.
+      // Make a binary version of the ROI image. For each channel, an adjustment removes low-intensity signal to leave clean
+      // structures.
       roiImage.killRoi();
       binaryImage = dup.run(roiImage);
       binaryImage.setTitle("Binary Mask");
-      binary = binaryImage.getProcessor();
       
       // Make a binary version of the red channel.
       adjustment = (int) findThreshold(imageCopy, 1, slices, redThreshold);             // Remove a bottom fraction of the pixel data.   
-      for (int z = 1; z <= slices; z++) {
-        binaryImage.setPositionWithoutUpdate(1, z, 1);
-        IJ.run(binaryImage, "Subtract...", "value=" + adjustment);
-        pixels = (short[]) binary.getPixels();
-        for (int i = 0; i < width * height; i++) {
-          if ((pixels[i] & 0xFFFF) > 0) {
-            pixels[i] = (short) 65535;
-          }
-        }
-      }
+      makeMask(binaryImage, 1, adjustment);
       
       // Make a binary version of the green channel.
       adjustment = (int) findThreshold(imageCopy, 2, slices, greenThreshold);            // Remove a bottom fraction of the pixel data.
-      for (int z = 1; z <= slices; z++) {
-        binaryImage.setPositionWithoutUpdate(2, z, 1);
-        IJ.run(binaryImage, "Subtract...", "value=" + adjustment);
-        pixels = (short[]) binary.getPixels();
-        for (int i = 0; i < width * height; i++) {
-          if ((pixels[i] & 0xFFFF) > 0) {
-            pixels[i] = (short) 65535;
-          }
-        }
-      }
+      makeMask(binaryImage, 2, adjustment);
       
       // If the blue channel is being used for subtraction, make a binary version of the blue channel.
       if (ignoreBlue) {
         adjustment = (int) findThreshold(imageCopy, 3, slices, blueThreshold);            // Remove a bottom fraction of the pixel data.
-        for (int z = 1; z <= slices; z++) {
-          binaryImage.setPositionWithoutUpdate(3, z, 1);
-          IJ.run(binaryImage, "Subtract...", "value=" + adjustment);
-          pixels = (short[]) binary.getPixels();
-          for (int i = 0; i < width * height; i++) {
-            if ((pixels[i] & 0xFFFF) > 0) {
-              pixels[i] = (short) 65535;
-            }
-          }
-        }
+        makeMask(binaryImage, 3, adjustment);
       }
       
-      invertedBinaryImage = dup.run(binaryImage);
-      IJ.run(invertedBinaryImage, "Invert", "stack");
-      
-      ImageCalculator ic = new ImageCalculator();
-      
-      // Create a temporary image to hold the fluorescence data for quantification.
-      ImagePlus temp = IJ.createImage("temp", "16-bit black", width, height, 1);
-      
       // If the blue channel is being used, create a subtracted binary image and measure how much of each mask was subtracted.
+      // Removing the blue mask is an AND with the inverted blue mask, which the andNot kernel does without an inverted copy.
       if (ignoreBlue) {
         subtractedBinaryImage = dup.run(binaryImage);
         subtractedBinaryImage.setTitle("Subtracted Mask");
-        invertedBinaryImage.setC(3);
-        subtractedBinaryImage.setC(1);
-        for (int z = 1; z <= slices; z++) {
-          subtractedBinaryImage.setZ(z);
-          invertedBinaryImage.setZ(z);
-          ic.run("AND", subtractedBinaryImage, invertedBinaryImage);
-        }
-        subtractedBinaryImage.setC(2);
         for (int z = 1; z <= slices; z++) {
-          subtractedBinaryImage.setZ(z);
-          invertedBinaryImage.setZ(z);
-          ic.run("AND", subtractedBinaryImage, invertedBinaryImage);
+          short[] blueMask = getPlane(binaryImage, 3, z);
+          PixelKernels.andNot(getPlane(subtractedBinaryImage, 1, z), blueMask);
+          PixelKernels.andNot(getPlane(subtractedBinaryImage, 2, z), blueMask);
         }
         
         // Measure how much of the red mask was subtracted.
         total = 0.0;
         overlapping = 0.0;
-        binaryImage.setC(1);
-        subtractedBinaryImage.setC(1);
         for (int z = 1; z <= slices; z++) {
-          binaryImage.setZ(z);
-          temp.getProcessor().copyBits(binaryImage.getProcessor(), 0, 0, Blitter.COPY);
-          total += temp.getStatistics().mean;
-          subtractedBinaryImage.setZ(z);
-          temp.getProcessor().copyBits(subtractedBinaryImage.getProcessor(), 0, 0, Blitter.COPY);
-          overlapping += temp.getStatistics().mean;
-          subtractedRed = 100.0 * (1.0 - overlapping / total);
+          total += PixelKernels.mean(getPlane(binaryImage, 1, z));
+          overlapping += PixelKernels.mean(getPlane(subtractedBinaryImage, 1, z));
         }
+        subtractedRed = 100.0 * (1.0 - overlapping / total);
         
         // Measure how much of the green mask was subtracted.
         total = 0.0;
         overlapping = 0.0;
-        binaryImage.setC(2);
-        subtractedBinaryImage.setC(2);
         for (int z = 1; z <= slices; z++) {
-          binaryImage.setZ(z);
-          temp.getProcessor().copyBits(binaryImage.getProcessor(), 0, 0, Blitter.COPY);
-          total += temp.getStatistics().mean;
-          subtractedBinaryImage.setZ(z);
-          temp.getProcessor().copyBits(subtractedBinaryImage.getProcessor(), 0, 0, Blitter.COPY);
-          overlapping += temp.getStatistics().mean;
-          subtractedGreen = 100.0 * (1.0 - overlapping / total);
+          total += PixelKernels.mean(getPlane(binaryImage, 2, z));
+          overlapping += PixelKernels.mean(getPlane(subtractedBinaryImage, 2, z));
         }
+        subtractedGreen = 100.0 * (1.0 - overlapping / total);
 
       }
             
@@ -429,16 +372,11 @@ public class Quantify_Overlap implements PlugIn {
       if (measureGreen) {
         greenInRed = dup.run(roiImage);
         greenInRed.setTitle("Green in Red");
-        greenInRed.setC(2);
-        binaryImage.setC(1);
-        invertedBinaryImage.setC(3);
         for (int z = 1; z <= slices; z++) {
-          greenInRed.setZ(z);
-          binaryImage.setZ(z);
-          ic.run("AND", greenInRed, binaryImage);
+          short[] pixels = getPlane(greenInRed, 2, z);
+          PixelKernels.and(pixels, getPlane(binaryImage, 1, z));
           if (ignoreBlue) {
-            invertedBinaryImage.setZ(z);
-            ic.run("AND", greenInRed, invertedBinaryImage);
+            PixelKernels.andNot(pixels, getPlane(binaryImage, 3, z));
           }
         }
       }
@@ -446,22 +384,15 @@ public class Quantify_Overlap implements PlugIn {
       if (measureRed) {
         redInGreen = dup.run(roiImage);
         redInGreen.setTitle("Red in Green");
-        redInGreen.setC(1);
-        binaryImage.setC(2);
-        invertedBinaryImage.setC(3);
         for (int z = 1; z <= slices; z++) {
-          redInGreen.setZ(z);
-          binaryImage.setZ(z);
-          ic.run("AND", redInGreen, binaryImage);
+          short[] pixels = getPlane(redInGreen, 1, z);
+          PixelKernels.and(pixels, getPlane(binaryImage, 2, z));
           if (ignoreBlue) {
-            invertedBinaryImage.setZ(z);
-            ic.run("AND", redInGreen, invertedBinaryImage);
+            PixelKernels.andNot(pixels, getPlane(binaryImage, 3, z));
           }
         }
       }
       
-      invertedBinaryImage.close();
-      
       // Create a ResultsTable for the output.
       ResultsTable results = getOrCreateResultsTable("Overlap");
       results.setPrecision(3);
@@ -475,15 +406,9 @@ public class Quantify_Overlap implements PlugIn {
       if (measureGreen) {
         total = 0.0;
         overlapping = 0.0;
-        roiImage.setC(2);
-        greenInRed.setC(2);
         for (int z = 1; z <= slices; z++) {
-          roiImage.setZ(z);
-          temp.getProcessor().copyBits(roiImage.getProcessor(), 0, 0, Blitter.COPY);
-          total += temp.getStatistics().mean;
-          greenInRed.setZ(z);
-          temp.getProcessor().copyBits(greenInRed.getProcessor(), 0, 0, Blitter.COPY);
-          overlapping += temp.getStatistics().mean;
+          total += PixelKernels.mean(getPlane(roiImage, 2, z));
+          overlapping += PixelKernels.mean(getPlane(greenInRed, 2, z));
         }
         if (fraction) {
           results.addValue("Green in Red", overlapping / total);
@@ -500,15 +425,9 @@ public class Quantify_Overlap implements PlugIn {
       if (measureRed) {
         total = 0.0;
         overlapping = 0.0;
-        roiImage.setC(1);
-        redInGreen.setC(1);
         for (int z = 1; z <= slices; z++) {
-          roiImage.setZ(z);
-          temp.getProcessor().copyBits(roiImage.getProcessor(), 0, 0, Blitter.COPY);
-          total += temp.getStatistics().mean;
-          redInGreen.setZ(z);
-          temp.getProcessor().copyBits(redInGreen.getProcessor(), 0, 0, Blitter.COPY);
-          overlapping += temp.getStatistics().mean;
+          total += PixelKernels.mean(getPlane(roiImage, 1, z));
+          overlapping += PixelKernels.mean(getPlane(redInGreen, 1, z));
         }
         if (fraction) {
           results.addValue("Red in Green", overlapping / total);
@@ -521,7 +440,6 @@ public class Quantify_Overlap implements PlugIn {
         }
       }
       
-      temp.close();
       image.setZ(zPosition);
       results.show("Overlap");
       
@@ -579,6 +497,20 @@ public class Quantify_Overlap implements PlugIn {
       
     //========================================================================================================================
       
+    /* Turns each slice of a channel into a mask of the pixels above the threshold. */
+    private void makeMask(ImagePlus imp, int channel, int threshold) {
+      for (int z = 1; z <= slices; z++) {
+        PixelKernels.thresholdToMask(getPlane(imp, channel, z), threshold);
+      }
+    }
+    
+    /* Returns the 16-bit pixels for a channel and slice of the first time point. */
+    private short[] getPlane(ImagePlus imp, int channel, int z) {
+      return (short[]) imp.getStack().getPixels(imp.getStackIndex(channel, z, 1));
+    }
+    
+    //========================================================================================================================
+      
     public static ResultsTable getOrCreateResultsTable(String title) {
       Window win = WindowManager.getWindow(title);
       if (win instanceof TextWindow) {
@@ -617,7 +549,7 @@ public class Quantify_Overlap implements PlugIn {
       double[] subtracted = new double[256];
       for (int i = 0; i < 256; i++) {
         subtracted[i] = ip.getStats().mean;
-        IJ.run(blurredImage, "Subtract...", "value=" + interval);
+        PixelKernels.subtractClamped((short[]) ip.getPixels(), interval);
         output.addValue("i", i);
         output.addValue("Mean", subtracted[i]);
         output.incrementCounter();
@@ -630,7 +562,7 @@ public class Quantify_Overlap implements PlugIn {
       for (int i = 0; i < 256; i++) {
         xValues[i] = (double) i;
         yValues[i] = ip.getStats().mean;
-        IJ.run(blurredImage, "Subtract...", "value=" + interval);
+        PixelKernels.subtractClamped((short[]) ip.getPixels(), interval);
       }
       CurveFitter curve = new CurveFitter(xValues, yValues);
       curve.doFit(4);                                               // Exponential
@@ -0,0 +1,191 @@
+package IJ_Plugins;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+import ij.gui.*;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+/* Traces the outline of a bright spot in an 8-bit plane, working directly on the pixel array instead of setting ROIs on an
+ * ImagePlus and measuring it. The brightest pixel inside a search ROI is found with one masked scan, and the spot is
+ * then flood-filled (8-connected) from that pixel with the same fraction-of-max tolerance that the wand uses. The outline
+ * is traced by the wand on a small mask of the filled spot, which gives the same polygon as tracing the whole plane.
+ * The area and centroid of the last spot are kept for tracking. A tracer reuses its buffers, so each thread needs its
+ * own. */
+public class SpotTracer {
+
+	private int width, height;
+	private double wandAdjuster, fractionIncrement;                          // See trace().
+	private int[] visited;                                                   // Pixels of the last spot hold "generation".
+	private int generation;
+	private int[] stack = new int[4096];                                     // Flood fill stack of pixel indexes.
+	private int area;
+	private double xCentroid, yCentroid;
+	private Rectangle bounds = new Rectangle();                              // Bounding box of the last spot.
+
+	//------------------------------------------------------------------------------------------------------------------------
+
+    public SpotTracer(int width, int height, double wandAdjuster, double fractionIncrement) {
+      this.width = width;
+      this.height = height;
+      this.wandAdjuster = wandAdjuster;
+      this.fractionIncrement = fractionIncrement;
+      visited = new int[width * height];
+    }
+
+    //========================================================================================================================
+
+    /* Traces a wand-type ROI around the spot that is within the specified ROI, if such a spot exists, and returns null
+     * otherwise. channelMax is the display maximum of the channel. */
+    public PolygonRoi trace(byte[] pixels, Roi roi, double channelMax) {
+      // Find the maximum value within the Roi, and a pixel that has it: the first one in the last row that contains it.
+      Rectangle box = roi.getBounds();
+      ImageProcessor mask = roi.getMask();
+      byte[] maskPixels = (mask != null) ? (byte[]) mask.getPixels() : null;
+      int xStart = Math.max(box.x, 0), xEnd = Math.min(box.x + box.width, width);
+      int yStart = Math.max(box.y, 0), yEnd = Math.min(box.y + box.height, height);
+      int max = -1, xMax = 0, yMax = 0;
+      for (int y = yStart; y < yEnd; y++) {
+        int row = y * width;
+        int maskRow = (y - box.y) * box.width - box.x;
+        int rowMax = -1, xRowMax = 0;
+        for (int x = xStart; x < xEnd; x++) {
+          if (maskPixels != null && maskPixels[maskRow + x] == 0) continue;
+          int value = pixels[row + x] & 255;
+          if (value > rowMax) {
+            rowMax = value;
+            xRowMax = x;
+          }
+        }
+        if (rowMax >= max && rowMax >= 0) {
+          max = rowMax;
+          xMax = xRowMax;
+          yMax = y;
+        }
+      }
+
+      // Return null if there is no sufficiently bright spot within the Roi.
+      if (max < 0 || channelMax == 0 || max < 0.25 * channelMax) {
+        return null;
+      }
+
+      // Choose the tolerance for the wand. This choice is delicate, and crucial. The tolerance will be a
+      // fraction of the "max" value for the brightest spot in the Roi, where this fraction is allowed to range
+      // from 0.25 for dim spots to 0.98 for bright spots. Empirically, if "max" is equal to the display
+      // maximum value "channelMax", a fraction value of 0.5 is appropriate. The fraction increases by
+      // "fractionIncrement" for every 2-fold increase in "max" relative to "channelMax". This algorithm works,
+      // but the resulting Roi is too tight around the spot, so a final adjustment corrects the value of
+      // "channelMax" by the factor of "wandAdjuster".
+      channelMax = channelMax * wandAdjuster;
+      double fraction = 0.5 + fractionIncrement * Math.log(max / channelMax) / Math.log(2.0);
+      fraction = Math.max(fraction, 0.25);
+      fraction = Math.min(fraction, 0.98);
+      double tolerance = fraction * max;
+
+      // The wand compares pixel values with single-precision limits.
+      fill(pixels, xMax, yMax, (float) (max - tolerance), (float) (max + tolerance));
+
+      // Outline the filled spot with a wand on a mask that has a black border around it.
+      int maskWidth = bounds.width + 2, maskHeight = bounds.height + 2;
+      byte[] spot = new byte[maskWidth * maskHeight];
+      for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+        int row = y * width;
+        int spotRow = (y - bounds.y + 1) * maskWidth - bounds.x + 1;
+        for (int x = bounds.x; x < bounds.x + bounds.width; x++) {
+          if (visited[row + x] == generation) spot[spotRow + x] = (byte) 255;
+        }
+      }
+      Wand wand = new Wand(new ByteProcessor(maskWidth, maskHeight, spot));
+      wand.autoOutline(xMax - bounds.x + 1, yMax - bounds.y + 1, 255.0, 255.0, Wand.EIGHT_CONNECTED);
+      for (int i = 0; i < wand.npoints; i++) {
+        wand.xpoints[i] += bounds.x - 1;
+        wand.ypoints[i] += bounds.y - 1;
+      }
+      return new PolygonRoi(wand.xpoints, wand.ypoints, wand.npoints, Roi.FREEROI);
+    }
+
+    //========================================================================================================================
+
+    /* Marks the 8-connected pixels with values from lower to upper that are connected to (x0, y0), and measures them. */
+    private void fill(byte[] pixels, int x0, int y0, float lower, float upper) {
+      if (++generation == Integer.MAX_VALUE) {
+        Arrays.fill(visited, 0);
+        generation = 1;
+      }
+      int xMin = x0, xMax = x0, yMin = y0, yMax = y0;
+      long xSum = 0, ySum = 0;
+      area = 0;
+
+      int top = 0;
+      stack[top++] = y0 * width + x0;
+      visited[y0 * width + x0] = generation;
+      while (top > 0) {
+        int index = stack[--top];
+        int x = index % width, y = index / width;
+        area++;
+        xSum += x;
+        ySum += y;
+        if (x < xMin) xMin = x;
+        if (x > xMax) xMax = x;
+        if (y < yMin) yMin = y;
+        if (y > yMax) yMax = y;
+        for (int dy = -1; dy <= 1; dy++) {
+          int ny = y + dy;
+          if (ny < 0 || ny >= height) continue;
+          for (int dx = -1; dx <= 1; dx++) {
+            int nx = x + dx;
+            if (nx < 0 || nx >= width) continue;
+            int neighbor = ny * width + nx;
+            if (visited[neighbor] == generation) continue;
+            float value = pixels[neighbor] & 255;
+            if (value >= lower && value <= upper) {
+              visited[neighbor] = generation;
+              if (top == stack.length) {
+                int[] larger = new int[2 * stack.length];
+                System.arraycopy(stack, 0, larger, 0, top);
+                stack = larger;
+              }
+              stack[top++] = neighbor;
+            }
+          }
+        }
+      }
+      bounds.setBounds(xMin, yMin, xMax - xMin + 1, yMax - yMin + 1);
+      xCentroid = (double) xSum / area + 0.5;
+      yCentroid = (double) ySum / area + 0.5;
+    }
+
+    //========================================================================================================================
+
+    /* Returns the number of pixels of the last traced spot that lie inside a ROI. */
+    public int countInside(Roi roi) {
+      Rectangle box = roi.getBounds();
+      ImageProcessor mask = roi.getMask();
+      byte[] maskPixels = (mask != null) ? (byte[]) mask.getPixels() : null;
+      Rectangle overlap = box.intersection(bounds);
+      int count = 0;
+      for (int y = overlap.y; y < overlap.y + overlap.height; y++) {
+        int row = y * width;
+        int maskRow = (y - box.y) * box.width - box.x;
+        for (int x = overlap.x; x < overlap.x + overlap.width; x++) {
+          if (visited[row + x] == generation && (maskPixels == null || maskPixels[maskRow + x] != 0)) count++;
+        }
+      }
+      return count;
+    }
+
+    /* Returns the number of pixels in the last traced spot. */
+    public int getArea() {
+      return area;
+    }
+
+    public double getXCentroid() {
+      return xCentroid;
+    }
+
+    public double getYCentroid() {
+      return yCentroid;
+    }
+
+}
@@ -0,0 +1,199 @@
+package IJ_Plugins;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Properties;
+
+import ij.io.FileInfo;
+import ij.io.FileOpener;
+import ij.io.TiffDecoder;
+import ij.measure.Calibration;
+
+/* Reads individual planes of an uncompressed 8-bit TIFF hyperstack through a FileChannel, so that a movie can be processed
+ * plane by plane without opening it. The TIFF header and the ImageJ description are decoded by ImageJ's TiffDecoder.
+ * Planes may be read concurrently from several threads. */
+public class TiffPlaneReader {
+
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private FileInfo[] info;
+	private int width, height, channels, slices, frames, planes;            // Hyperstack parameters.
+	private long firstOffset, planeStep;                                     // Layout of ImageJ contiguous planes.
+	private String name;
+
+	//------------------------------------------------------------------------------------------------------------------------
+
+    public TiffPlaneReader(String directory, String fileName) throws IOException {
+      name = fileName;
+      info = new TiffDecoder(directory, fileName).getTiffInfo();
+      if (info == null || info.length == 0) {
+        throw new IOException(fileName + " is not a TIFF file.");
+      }
+      FileInfo fi = info[0];
+      if (!readable(fi)) {
+        throw new IOException(fileName + " is not an uncompressed 8-bit TIFF file.");
+      }
+      width = fi.width;
+      height = fi.height;
+
+      // The ImageJ description gives the hyperstack dimensions, and for contiguous ImageJ files, the number of images.
+      Properties props = new FileOpener(fi).decodeDescriptionString(fi);
+      channels = getProperty(props, "channels", 1);
+      slices = getProperty(props, "slices", 1);
+      frames = getProperty(props, "frames", 1);
+
+      if (info.length == 1) {
+        planes = fi.nImages;
+        firstOffset = fi.getOffset();
+        planeStep = (long) width * height + fi.getGap();
+      }
+      else {
+        planes = info.length;
+        for (int i = 0; i < info.length; i++) {
+          if (!readable(info[i]) || info[i].width != width || info[i].height != height || !contiguousStrips(info[i])) {
+            throw new IOException(fileName + " has planes that cannot be read directly.");
+          }
+        }
+      }
+      if (channels * slices * frames != planes) {
+        channels = 1;
+        slices = planes;
+        frames = 1;
+      }
+      if (info.length == 1 && fi.stripOffsets != null && !contiguousStrips(fi)) {
+        throw new IOException(fileName + " has planes that cannot be read directly.");
+      }
+
+      file = new RandomAccessFile(new File(directory, fileName), "r");
+      channel = file.getChannel();
+      if (offset(planes) + (long) width * height > channel.size()) {
+        close();
+        throw new IOException(fileName + " is truncated.");
+      }
+    }
+
+    //========================================================================================================================
+
+    public String getName() {
+      return name;
+    }
+
+    public int getWidth() {
+      return width;
+    }
+
+    public int getHeight() {
+      return height;
+    }
+
+    public int getNChannels() {
+      return channels;
+    }
+
+    public int getNSlices() {
+      return slices;
+    }
+
+    public int getNFrames() {
+      return frames;
+    }
+
+    public int getSize() {
+      return planes;
+    }
+
+    /* Returns the "Info" property that ImageJ saved with the hyperstack, or null. */
+    public String getInfo() {
+      return info[0].info;
+    }
+
+    /* Returns the saved display range of a channel (1-based) as {min, max}, or {0, 255} if none was saved. */
+    public double[] getDisplayRange(int ch) {
+      double[] ranges = info[0].displayRanges;
+      if (ranges != null && 2 * ch <= ranges.length) {
+        return new double[] {ranges[2 * ch - 2], ranges[2 * ch - 1]};
+      }
+      return new double[] {0.0, 255.0};
+    }
+
+    /* Returns the saved channel LUTs, or null. */
+    public byte[][] getChannelLuts() {
+      return info[0].channelLuts;
+    }
+
+    public Calibration getCalibration() {
+      FileInfo fi = info[0];
+      Calibration cal = new Calibration();
+      if (fi.pixelWidth > 0.0 && fi.unit != null) {
+        cal.pixelWidth = fi.pixelWidth;
+        cal.pixelHeight = fi.pixelHeight;
+        cal.pixelDepth = fi.pixelDepth;
+        cal.setUnit(fi.unit);
+      }
+      cal.frameInterval = fi.frameInterval;
+      return cal;
+    }
+
+    //========================================================================================================================
+
+    /* Reads plane n (1-based, in hyperstack order) into "pixels", which must hold width * height bytes. */
+    public void readPlane(int n, byte[] pixels) throws IOException {
+      ByteBuffer buffer = ByteBuffer.wrap(pixels, 0, width * height);
+      long position = offset(n);
+      while (buffer.hasRemaining()) {
+        int count = channel.read(buffer, position);
+        if (count < 0) {
+          throw new IOException(name + " ended unexpectedly.");
+        }
+        position += count;
+      }
+    }
+
+    /* Returns the stack index for channel ch, slice z and frame t (all 1-based). */
+    public int getStackIndex(int ch, int z, int t) {
+      return (t - 1) * channels * slices + (z - 1) * channels + ch;
+    }
+
+    public void close() throws IOException {
+      file.close();
+    }
+
+    //========================================================================================================================
+
+    private long offset(int n) {
+      if (info.length == 1) {
+        return firstOffset + (n - 1) * planeStep;
+      }
+      return info[n - 1].getOffset();
+    }
+
+    /* Checks that a plane holds uncompressed 8-bit pixels. Composite hyperstacks are saved with a LUT, as COLOR8. */
+    private boolean readable(FileInfo fi) {
+      return (fi.fileType == FileInfo.GRAY8 || fi.fileType == FileInfo.COLOR8) && fi.compression <= FileInfo.COMPRESSION_NONE;
+    }
+
+    /* Checks that the strips of a plane follow each other in the file, so that the plane can be read in one piece. */
+    private boolean contiguousStrips(FileInfo fi) {
+      if (fi.stripOffsets == null || fi.stripOffsets.length < 2) return true;
+      for (int i = 1; i < fi.stripOffsets.length; i++) {
+        if ((fi.stripOffsets[i] & 0xFFFFFFFFL) != (fi.stripOffsets[i - 1] & 0xFFFFFFFFL) + (fi.stripLengths[i - 1] & 0xFFFFFFFFL)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private int getProperty(Properties props, String key, int defaultValue) {
+      if (props == null || props.getProperty(key) == null) return defaultValue;
+      try {
+        return Integer.parseInt(props.getProperty(key).trim());
+      }
+      catch (NumberFormatException e) {
+        return defaultValue;
+      }
+    }
+
+}
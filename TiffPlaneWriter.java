@@ -0,0 +1,255 @@
+package IJ_Plugins;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import ij.IJ;
+import ij.process.LUT;
+
+/* Writes an uncompressed 8-bit TIFF hyperstack plane by plane through a FileChannel, so that a movie can be produced without
+ * holding it in memory. The layout follows ImageJ's own TIFF encoder: the first IFD, the ImageJ description and the
+ * metadata (Info, display ranges and channel LUTs) come first, then the planes follow each other in hyperstack order, and
+ * the remaining IFDs are written after the data when the file is closed. As in ImageJ, files larger than 4 GB keep only
+ * the first IFD, and ImageJ reads the planes as one contiguous block. Planes may be written concurrently, in any order. */
+public class TiffPlaneWriter {
+
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private int width, height, planes;                                       // Plane size and number of planes.
+	private long dataOffset;                                                 // Offset of the first plane.
+	private long rangesOffset;                                               // Offset of the display ranges, or 0.
+	private int rangesLength;
+	private String name;
+
+	// TIFF tags and field types.
+	private static final int NEW_SUBFILE_TYPE = 254, IMAGE_WIDTH = 256, IMAGE_LENGTH = 257, BITS_PER_SAMPLE = 258,
+	                         PHOTO_INTERP = 262, IMAGE_DESCRIPTION = 270, STRIP_OFFSETS = 273, SAMPLES_PER_PIXEL = 277,
+	                         ROWS_PER_STRIP = 278, STRIP_BYTE_COUNT = 279, META_DATA_BYTE_COUNTS = 50838, META_DATA = 50839;
+	private static final int BYTE = 1, ASCII = 2, SHORT = 3, LONG = 4;
+
+	// ImageJ metadata types.
+	private static final int MAGIC_NUMBER = 0x494a494a, INFO = 0x696e666f, RANGES = 0x72616e67, LUTS = 0x6c757473;
+
+	private static final int HEADER_SIZE = 8;
+	private static final int FIRST_IFD_ENTRIES = 12, IFD_ENTRIES = 9;
+
+	//------------------------------------------------------------------------------------------------------------------------
+
+    /* Creates the file and writes the header, the first IFD and the metadata. The info, display ranges ({min, max} for
+     * each channel) and channel LUTs (768 bytes each: reds, greens, blues) are optional and may be null. */
+    public TiffPlaneWriter(File outputFile, int width, int height, int channels, int slices, int frames, String info,
+                           double[] displayRanges, byte[][] channelLuts) throws IOException {
+      name = outputFile.getName();
+      this.width = width;
+      this.height = height;
+      planes = channels * slices * frames;
+
+      String description = "ImageJ=" + IJ.getVersion() + "\nimages=" + planes + "\nchannels=" + channels + "\nslices=" +
+                           slices + "\nframes=" + frames + "\nhyperstack=true\nmode=composite\nloop=false\n";
+      byte[] descriptionBytes = (description + "\0").getBytes(StandardCharsets.US_ASCII);
+      ByteBuffer metaData = makeMetaData(info, displayRanges, channelLuts);
+      int[] counts = metaDataCounts(info, displayRanges, channelLuts);
+
+      long descriptionOffset = HEADER_SIZE + ifdSize(FIRST_IFD_ENTRIES);
+      long countsOffset = descriptionOffset + descriptionBytes.length;
+      long metaDataOffset = countsOffset + 4 * counts.length;
+      dataOffset = metaDataOffset + metaData.capacity();
+      if (displayRanges != null) {
+        rangesOffset = metaDataOffset + counts[0] + ((info != null) ? counts[1] : 0);
+        rangesLength = displayRanges.length;
+      }
+
+      ByteBuffer buffer = ByteBuffer.allocate((int) dataOffset).order(ByteOrder.LITTLE_ENDIAN);
+      buffer.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(HEADER_SIZE);
+      buffer.putShort((short) FIRST_IFD_ENTRIES);
+      putImageEntries(buffer);
+      putEntry(buffer, IMAGE_DESCRIPTION, ASCII, descriptionBytes.length, descriptionOffset);
+      putEntry(buffer, STRIP_OFFSETS, LONG, 1, dataOffset);
+      putEntry(buffer, SAMPLES_PER_PIXEL, SHORT, 1, 1);
+      putEntry(buffer, ROWS_PER_STRIP, LONG, 1, height);
+      putEntry(buffer, STRIP_BYTE_COUNT, LONG, 1, (long) width * height);
+      putEntry(buffer, META_DATA_BYTE_COUNTS, LONG, counts.length, countsOffset);
+      putEntry(buffer, META_DATA, BYTE, metaData.capacity(), metaDataOffset);
+      buffer.putInt(0);                                                      // Next IFD, patched when the file is closed.
+      buffer.put(descriptionBytes);
+      for (int i = 0; i < counts.length; i++) {
+        buffer.putInt(counts[i]);
+      }
+      buffer.put(metaData);
+      buffer.flip();
+
+      file = new RandomAccessFile(outputFile, "rw");
+      channel = file.getChannel();
+      channel.truncate(0);
+      write(buffer, 0);
+    }
+
+    //========================================================================================================================
+
+    public String getName() {
+      return name;
+    }
+
+    /* Writes plane n (1-based, in hyperstack order) from "pixels", which must hold width * height bytes. */
+    public void writePlane(int n, byte[] pixels) throws IOException {
+      write(ByteBuffer.wrap(pixels, 0, width * height), dataOffset + (long) (n - 1) * width * height);
+    }
+
+    /* Replaces the display ranges given to the constructor, for ranges that are only known once the planes are written. 
+     * The number of ranges must not change. */
+    public void setDisplayRanges(double[] displayRanges) throws IOException {
+      if (rangesOffset == 0 || displayRanges.length != rangesLength) {
+        throw new IllegalArgumentException("The display ranges must match those given when the file was created.");
+      }
+      ByteBuffer buffer = ByteBuffer.allocate(8 * rangesLength).order(ByteOrder.LITTLE_ENDIAN);
+      for (int i = 0; i < rangesLength; i++) {
+        buffer.putDouble(displayRanges[i]);
+      }
+      buffer.flip();
+      write(buffer, rangesOffset);
+    }
+
+    /* Writes the IFDs for the second and later planes, if the file is small enough for 32-bit offsets, and closes the file. */
+    public void close() throws IOException {
+      try {
+        long planeSize = (long) width * height;
+        long ifdOffset = dataOffset + planes * planeSize;
+        int ifdSize = ifdSize(IFD_ENTRIES);
+        if (planes > 1 && ifdOffset + (long) (planes - 1) * ifdSize <= 0xFFFFFFFFL) {
+          ByteBuffer next = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+          next.putInt(0, (int) ifdOffset);
+          write(next, HEADER_SIZE + ifdSize(FIRST_IFD_ENTRIES) - 4);
+
+          ByteBuffer buffer = ByteBuffer.allocate((planes - 1) * ifdSize).order(ByteOrder.LITTLE_ENDIAN);
+          for (int n = 2; n <= planes; n++) {
+            buffer.putShort((short) IFD_ENTRIES);
+            putImageEntries(buffer);
+            putEntry(buffer, STRIP_OFFSETS, LONG, 1, dataOffset + (n - 1) * planeSize);
+            putEntry(buffer, SAMPLES_PER_PIXEL, SHORT, 1, 1);
+            putEntry(buffer, ROWS_PER_STRIP, LONG, 1, height);
+            putEntry(buffer, STRIP_BYTE_COUNT, LONG, 1, planeSize);
+            buffer.putInt(n < planes ? (int) (ifdOffset + (n - 1) * ifdSize) : 0);
+          }
+          buffer.flip();
+          write(buffer, ifdOffset);
+        }
+      }
+      finally {
+        file.close();
+      }
+    }
+
+    //========================================================================================================================
+
+    /* Puts the entries that every IFD starts with. */
+    private void putImageEntries(ByteBuffer buffer) {
+      putEntry(buffer, NEW_SUBFILE_TYPE, LONG, 1, 0);
+      putEntry(buffer, IMAGE_WIDTH, LONG, 1, width);
+      putEntry(buffer, IMAGE_LENGTH, LONG, 1, height);
+      putEntry(buffer, BITS_PER_SAMPLE, SHORT, 1, 8);
+      putEntry(buffer, PHOTO_INTERP, SHORT, 1, 1);                           // Black is zero. ImageJ applies the channel LUTs.
+    }
+
+    /* Puts a 12-byte IFD entry. SHORT values are stored in the first two bytes of the value field. */
+    private void putEntry(ByteBuffer buffer, int tag, int type, int count, long value) {
+      buffer.putShort((short) tag);
+      buffer.putShort((short) type);
+      buffer.putInt(count);
+      if (type == SHORT && count == 1) {
+        buffer.putShort((short) value);
+        buffer.putShort((short) 0);
+      }
+      else {
+        buffer.putInt((int) value);
+      }
+    }
+
+    private int ifdSize(int entries) {
+      return 2 + 12 * entries + 4;
+    }
+
+    //========================================================================================================================
+
+    /* Returns the byte counts of the ImageJ metadata: the header first, then one count for each entry. */
+    private int[] metaDataCounts(String info, double[] displayRanges, byte[][] channelLuts) {
+      int types = 0, entries = 0;
+      if (info != null) { types++; entries++; }
+      if (displayRanges != null) { types++; entries++; }
+      if (channelLuts != null) { types++; entries += channelLuts.length; }
+
+      int[] counts = new int[1 + entries];
+      int n = 0;
+      counts[n++] = 4 + 8 * types;
+      if (info != null) counts[n++] = 2 * info.length();
+      if (displayRanges != null) counts[n++] = 8 * displayRanges.length;
+      if (channelLuts != null) {
+        for (int i = 0; i < channelLuts.length; i++) {
+          counts[n++] = channelLuts[i].length;
+        }
+      }
+      return counts;
+    }
+
+    /* Returns the ImageJ metadata block: a header of (type, count) pairs, followed by the Info as UTF-16 characters, the
+     * display ranges as doubles, and the channel LUTs. */
+    private ByteBuffer makeMetaData(String info, double[] displayRanges, byte[][] channelLuts) {
+      int[] counts = metaDataCounts(info, displayRanges, channelLuts);
+      int size = 0;
+      for (int i = 0; i < counts.length; i++) {
+        size += counts[i];
+      }
+      ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+      buffer.putInt(MAGIC_NUMBER);
+      if (info != null) buffer.putInt(INFO).putInt(1);
+      if (displayRanges != null) buffer.putInt(RANGES).putInt(1);
+      if (channelLuts != null) buffer.putInt(LUTS).putInt(channelLuts.length);
+      if (info != null) {
+        for (int i = 0; i < info.length(); i++) {
+          buffer.putChar(info.charAt(i));
+        }
+      }
+      if (displayRanges != null) {
+        for (int i = 0; i < displayRanges.length; i++) {
+          buffer.putDouble(displayRanges[i]);
+        }
+      }
+      if (channelLuts != null) {
+        for (int i = 0; i < channelLuts.length; i++) {
+          buffer.put(channelLuts[i]);
+        }
+      }
+      buffer.flip();
+      return buffer;
+    }
+
+    /* Returns a channel LUT in the form saved in TIFF metadata: 256 reds, then 256 greens, then 256 blues. */
+    public static byte[] lutBytes(Color color) {
+      return lutBytes(LUT.createLutFromColor(color));
+    }
+
+    public static byte[] lutBytes(LUT lut) {
+      byte[] bytes = new byte[768];
+      lut.getReds(bytes);
+      byte[] greens = new byte[256], blues = new byte[256];
+      lut.getGreens(greens);
+      lut.getBlues(blues);
+      System.arraycopy(greens, 0, bytes, 256, 256);
+      System.arraycopy(blues, 0, bytes, 512, 256);
+      return bytes;
+    }
+
+    //========================================================================================================================
+
+    private void write(ByteBuffer buffer, long position) throws IOException {
+      while (buffer.hasRemaining()) {
+        position += channel.write(buffer, position);
+      }
+    }
+
+}
@@ -0,0 +1,187 @@
+package IJ_Plugins;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import ij.measure.ResultsTable;
+
+/* Compact binary container for fluorescence traces. The header records the number of channels in the original movie, the
+ * frame interval, the trace length, and the column headings. The data follow as little-endian double columns, one column
+ * after another, so that a trace can be written straight from the measured arrays and read back through a memory map. */
+public class TraceFile {
+
+	public static final String EXTENSION = ".trace";
+
+	private static final int MAGIC = 0x52544434;                             // "4DTR" in little-endian byte order.
+	private static final int VERSION = 1;
+
+	private int channels;                                                    // Number of channels in the original movie.
+	private double interval;                                                 // Interval between time points.
+	private int length;                                                      // Number of time points.
+	private String[] headings;                                               // Column headings, matching the ResultsTable.
+	private double[][] columns;                                              // Column data, indexed [column][time point].
+
+	//------------------------------------------------------------------------------------------------------------------------
+
+    public TraceFile(int channels, double interval, String[] headings, double[][] columns) {
+      if (headings.length != columns.length) {
+        throw new IllegalArgumentException("Each trace column needs a heading.");
+      }
+      this.channels = channels;
+      this.interval = interval;
+      this.headings = headings;
+      this.columns = columns;
+      length = columns.length > 0 ? columns[0].length : 0;
+      for (int i = 0; i < columns.length; i++) {
+        if (columns[i].length != length) {
+          throw new IllegalArgumentException("All trace columns must have the same length.");
+        }
+      }
+    }
+
+    //========================================================================================================================
+
+    public int getChannels() {
+      return channels;
+    }
+
+    public double getInterval() {
+      return interval;
+    }
+
+    public int getLength() {
+      return length;
+    }
+
+    public String[] getHeadings() {
+      return headings;
+    }
+
+    /* Returns the data for the column with the given heading, or null if there is no such column. */
+    public double[] getColumn(String heading) {
+      for (int i = 0; i < headings.length; i++) {
+        if (headings[i].equals(heading)) {
+          return columns[i];
+        }
+      }
+      return null;
+    }
+
+    //========================================================================================================================
+
+    /* Returns true if the file name has the binary trace extension. */
+    public static boolean isTraceFile(String name) {
+      return name.toLowerCase().endsWith(EXTENSION);
+    }
+
+    //========================================================================================================================
+
+    /* Writes the header and the little-endian double columns with a single channel write. */
+    public void write(File file) throws IOException {
+      byte[][] names = new byte[headings.length][];
+      int headerSize = 4 * 4 + 8 + 4;                                        // magic, version, channels, interval, length, columns
+      for (int i = 0; i < headings.length; i++) {
+        names[i] = headings[i].getBytes(StandardCharsets.UTF_8);
+        headerSize += 2 + names[i].length;
+      }
+      headerSize = (headerSize + 7) & ~7;                                    // Align the data on an 8-byte boundary.
+
+      ByteBuffer buffer = ByteBuffer.allocate(headerSize + 8 * length * columns.length);
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      buffer.putInt(MAGIC);
+      buffer.putInt(VERSION);
+      buffer.putInt(channels);
+      buffer.putDouble(interval);
+      buffer.putInt(length);
+      buffer.putInt(columns.length);
+      for (int i = 0; i < names.length; i++) {
+        buffer.putShort((short) names[i].length);
+        buffer.put(names[i]);
+      }
+      buffer.position(headerSize);
+      for (int i = 0; i < columns.length; i++) {
+        buffer.asDoubleBuffer().put(columns[i]);
+        buffer.position(buffer.position() + 8 * length);
+      }
+      buffer.flip();
+
+      RandomAccessFile out = new RandomAccessFile(file, "rw");
+      try {
+        FileChannel channel = out.getChannel();
+        channel.truncate(0);
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+      }
+      finally {
+        out.close();
+      }
+    }
+
+    //========================================================================================================================
+
+    /* Reads a trace file through a read-only memory map. */
+    public static TraceFile read(File file) throws IOException {
+      RandomAccessFile in = new RandomAccessFile(file, "r");
+      try {
+        FileChannel channel = in.getChannel();
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (buffer.remaining() < 28 || buffer.getInt() != MAGIC) {
+          throw new IOException(file.getName() + " is not a trace file.");
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+          throw new IOException(file.getName() + " has unsupported trace file version " + version + ".");
+        }
+        int channels = buffer.getInt();
+        double interval = buffer.getDouble();
+        int length = buffer.getInt();
+        int nColumns = buffer.getInt();
+
+        String[] headings = new String[nColumns];
+        for (int i = 0; i < nColumns; i++) {
+          byte[] name = new byte[buffer.getShort() & 0xFFFF];
+          buffer.get(name);
+          headings[i] = new String(name, StandardCharsets.UTF_8);
+        }
+        buffer.position((buffer.position() + 7) & ~7);
+        if (buffer.remaining() < 8L * length * nColumns) {
+          throw new IOException(file.getName() + " is truncated.");
+        }
+
+        double[][] columns = new double[nColumns][length];
+        for (int i = 0; i < nColumns; i++) {
+          buffer.asDoubleBuffer().get(columns[i]);
+          buffer.position(buffer.position() + 8 * length);
+        }
+
+        return new TraceFile(channels, interval, headings, columns);
+      }
+      finally {
+        in.close();
+      }
+    }
+
+    //========================================================================================================================
+
+    /* Copies the columns into a ResultsTable with the same headings. */
+    public ResultsTable toResultsTable() {
+      ResultsTable table = new ResultsTable();
+      for (int j = 0; j < length; j++) {
+        table.incrementCounter();
+        for (int i = 0; i < columns.length; i++) {
+          table.addValue(headings[i], columns[i][j]);
+        }
+      }
+      return table;
+    }
+
+}